@@ -0,0 +1,500 @@
+package com.orbotix.collisions;
+
+import orbotix.robot.base.CollisionDetectedAsyncData;
+import orbotix.robot.base.Robot;
+import orbotix.robot.sensor.Acceleration;
+import orbotix.robot.sensor.AccelerometerData;
+import orbotix.robot.sensor.DeviceSensorsData;
+import orbotix.robot.sensor.GyroData;
+import orbotix.robot.sensor.ThreeAxisSensor;
+import orbotix.sphero.CollisionListener;
+import orbotix.sphero.SensorListener;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Detects collisions on the phone from the streamed accelerometer and gyro, as an alternative or a check
+ * on {@link orbotix.sphero.CollisionControl}'s firmware detection.
+ *
+ * A collision is a sample where the horizontal jerk, the change in x/y acceleration per second, and the
+ * horizontal acceleration energy over a short window both cross their thresholds. A jump in rotation rate
+ * at the same time raises the confidence. After a detection, further hits are ignored for the dead time.
+ * Jerk is taken over the streaming interval set with {@link #setStreamingRate(int)}, and the latency and
+ * dead time are counted in samples, since frames parsed together share their arrival time stamp.
+ *
+ * Detections go to {@link CollisionListener}s as regular {@link CollisionDetectedAsyncData}, so code
+ * written for firmware events works unchanged, and to {@link DetectionListener}s with a confidence and the
+ * detection latency. The events go through the SDK's own parser, achievements included, exactly like
+ * firmware events. In cross-check mode the detector also listens to the firmware's events and counts
+ * how many collisions both, only the phone or only the firmware saw, for tuning thresholds. Both sides are
+ * compared by the phone time their data arrived at: the confirming sample for a phone detection, the
+ * collision packet for a firmware event. The robot's impact time stamps aren't used, they are on the
+ * robot's clock shifted by an estimated offset and would make the link delay look like a lead.
+ *
+ * Register the detector with {@link orbotix.sphero.SensorControl#addSensorListener} for
+ * {@link orbotix.sphero.SensorFlag#ACCELEROMETER_NORMALIZED} and
+ * {@link orbotix.sphero.SensorFlag#GYRO_NORMALIZED}, or for
+ * {@link orbotix.sphero.SensorFlag#ACCELEROMETER_RAW} after {@link #setRawScale(float)}. Frames without
+ * the selected accelerometer are skipped.
+ */
+public class CollisionDetector implements SensorListener {
+
+    /** Data length of a firmware collision packet */
+    private static final int COLLISION_DATA_LENGTH = 16;
+
+    /** Async id code of a collision packet */
+    private static final byte COLLISION_ID_CODE = 0x07;
+
+    /** GYRO_NORMALIZED units per degree per second */
+    private static final float GYRO_UNITS_PER_DPS = 10.0f;
+
+    /** Sampling rate of the robot's control system, which the streaming rate divides down */
+    private static final int SAMPLE_RATE = 400;
+
+    /** Rate {@link orbotix.sphero.SensorControl} streams at until told otherwise */
+    private static final int DEFAULT_STREAMING_RATE = 50;
+
+    /** Samples in the energy window */
+    private static final int WINDOW = 8;
+
+    /** Most unmatched events remembered per side in cross-check mode */
+    private static final int MAX_PENDING = 16;
+
+    /**
+     * Notified of every phone-side detection, on the thread sensor data is delivered on.
+     */
+    public interface DetectionListener {
+        /**
+         * @param collision the collision, as a firmware event would describe it
+         * @param confidence how clearly the thresholds were crossed, from 0 to 1
+         * @param latency the time from the first sample of the impact to the detection, in milliseconds:
+         *                the samples in between at the streaming interval, plus the time the confirming
+         *                sample took from the SDK's parser to the detector
+         */
+        public void onCollisionDetected(CollisionDetectedAsyncData collision, float confidence, long latency);
+    }
+
+    private final Robot mRobot;
+    private final CopyOnWriteArrayList<CollisionListener> mCollisionListeners = new CopyOnWriteArrayList<CollisionListener>();
+    private final CopyOnWriteArrayList<DetectionListener> mDetectionListeners = new CopyOnWriteArrayList<DetectionListener>();
+
+    // Thresholds
+    private float mJerkThreshold = 40;
+    private float mEnergyThreshold = 0.15f;
+    private float mGyroThreshold = 300;
+    private long mDeadTime = 300;
+    // 0 while the normalized accelerometer is used
+    private volatile float mRawScale = 0;
+    // Time between two samples, in seconds
+    private volatile float mSampleInterval = streamingInterval(DEFAULT_STREAMING_RATE);
+
+    // Detection state, touched only on the sensor thread
+    private boolean mHasPrevious = false;
+    private long mSampleCount = 0;
+    private float mPreviousX, mPreviousY, mPreviousRate;
+    private final float[] mWindowX = new float[WINDOW];
+    private final float[] mWindowY = new float[WINDOW];
+    private int mWindowIndex = 0;
+    private int mWindowCount = 0;
+    private long mOnsetSample = -1;
+    private long mLastDetectionSample = -1;
+
+    // Cross-check state, protected by this
+    private boolean mCrossCheck = false;
+    private long mMatchWindow = 250;
+    private final long[] mPendingPhone = new long[MAX_PENDING];
+    private int mPendingPhoneCount = 0;
+    private final long[] mPendingFirmware = new long[MAX_PENDING];
+    private int mPendingFirmwareCount = 0;
+    private long mMatched = 0;
+    private long mPhoneOnly = 0;
+    private long mFirmwareOnly = 0;
+    private long mLeadSum = 0;
+
+    private volatile long mDetections = 0;
+
+    private final CollisionListener mFirmwareListener = new CollisionListener() {
+        @Override
+        public void collisionDetected(CollisionDetectedAsyncData data) {
+            // Arrival on the phone, the same clock the sensor frames are stamped with
+            onFirmwareCollision(data.getTimeStamp().getTime());
+        }
+    };
+
+    /**
+     * @param robot the robot the detected collisions are reported for
+     */
+    public CollisionDetector(Robot robot) {
+        mRobot = robot;
+    }
+
+    /**
+     * Sets the detection thresholds.
+     *
+     * @param jerk the horizontal jerk threshold, in g per second
+     * @param energy the horizontal energy threshold, the mean squared deviation over the window in g^2
+     * @param gyro the rotation rate jump, in degrees per second, that counts as full confidence
+     * @param deadTime the time after a detection during which no other is reported, in milliseconds
+     */
+    public synchronized void setThresholds(float jerk, float energy, float gyro, long deadTime) {
+        mJerkThreshold = jerk;
+        mEnergyThreshold = energy;
+        mGyroThreshold = gyro;
+        mDeadTime = deadTime;
+    }
+
+    /**
+     * Makes the detector read {@link orbotix.sphero.SensorFlag#ACCELEROMETER_RAW} instead of the
+     * normalized accelerometer.
+     *
+     * @param gPerUnit g per raw unit, or 0 to go back to the normalized accelerometer
+     */
+    public void setRawScale(float gPerUnit) {
+        mRawScale = gPerUnit;
+    }
+
+    /**
+     * Sets the rate the sensors are streamed at, which jerk, latency and dead time are measured with.
+     *
+     * @param rateHz the rate passed to {@link orbotix.sphero.SensorControl#setRate(int)}
+     */
+    public void setStreamingRate(int rateHz) {
+        if (rateHz <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        mSampleInterval = streamingInterval(rateHz);
+    }
+
+    /**
+     * Returns the time between two samples the robot actually streams for a requested rate. The robot
+     * divides its sampling rate by a whole number, like SensorControl does.
+     */
+    private static float streamingInterval(int rateHz) {
+        int divisor = Math.max(1, SAMPLE_RATE / Math.min(rateHz, SAMPLE_RATE));
+        return (float) divisor / SAMPLE_RATE;
+    }
+
+    public void addCollisionListener(CollisionListener listener) {
+        mCollisionListeners.addIfAbsent(listener);
+    }
+
+    public void removeCollisionListener(CollisionListener listener) {
+        mCollisionListeners.remove(listener);
+    }
+
+    public void addDetectionListener(DetectionListener listener) {
+        mDetectionListeners.addIfAbsent(listener);
+    }
+
+    public void removeDetectionListener(DetectionListener listener) {
+        mDetectionListeners.remove(listener);
+    }
+
+    /**
+     * @return the firmware listener to register with {@link orbotix.sphero.CollisionControl} for
+     *         cross-check mode
+     */
+    public CollisionListener getFirmwareListener() {
+        return mFirmwareListener;
+    }
+
+    /**
+     * Turns cross-checking against the firmware's events on or off. Register
+     * {@link #getFirmwareListener()} with the robot's CollisionControl as well.
+     *
+     * @param enabled True, to compare phone detections to firmware events
+     * @param matchWindow how far apart the arrival times of a phone detection's confirming sample and a
+     *                    firmware event may be to count as one collision, in milliseconds
+     */
+    public synchronized void setCrossCheck(boolean enabled, long matchWindow) {
+        mCrossCheck = enabled;
+        mMatchWindow = matchWindow;
+        mPendingPhoneCount = 0;
+        mPendingFirmwareCount = 0;
+    }
+
+    @Override
+    public void sensorUpdated(DeviceSensorsData data) {
+        AccelerometerData accelerometer = data.getAccelerometerData();
+        if (accelerometer == null) {
+            return;
+        }
+        // The SDK creates the sensor objects for every frame, but only fills the ones that were streamed
+        float x, y;
+        float rawScale = mRawScale;
+        if (rawScale > 0) {
+            ThreeAxisSensor raw = accelerometer.getRawAcceleration();
+            if (raw == null) {
+                return;
+            }
+            x = raw.x * rawScale;
+            y = raw.y * rawScale;
+        } else {
+            Acceleration filtered = accelerometer.getFilteredAcceleration();
+            if (filtered == null) {
+                return;
+            }
+            x = (float) filtered.x;
+            y = (float) filtered.y;
+        }
+        float rate = 0;
+        GyroData gyro = data.getGyroData();
+        ThreeAxisSensor r = (gyro != null) ? gyro.getRotationRateFiltered() : null;
+        if (r != null) {
+            rate = (float) Math.sqrt(r.x * r.x + r.y * r.y + r.z * r.z) / GYRO_UNITS_PER_DPS;
+        }
+        process(data.getTimeStamp(), x, y, rate);
+    }
+
+    /**
+     * Runs detection on one sample. Samples must come one streaming interval apart.
+     *
+     * @param time the time the sample arrived on the phone, in milliseconds, which detections are
+     *             reported and cross-checked with
+     * @param x the x acceleration, in g
+     * @param y the y acceleration, in g
+     * @param rate the rotation rate magnitude, in degrees per second
+     */
+    public void process(long time, float x, float y, float rate) {
+        float jerkThreshold, energyThreshold, gyroThreshold;
+        long deadTime;
+        synchronized (this) {
+            jerkThreshold = mJerkThreshold;
+            energyThreshold = mEnergyThreshold;
+            gyroThreshold = mGyroThreshold;
+            deadTime = mDeadTime;
+        }
+
+        // Energy of the horizontal acceleration around its mean over the window, including this sample
+        mWindowX[mWindowIndex] = x;
+        mWindowY[mWindowIndex] = y;
+        mWindowIndex = (mWindowIndex + 1) % WINDOW;
+        mWindowCount = Math.min(mWindowCount + 1, WINDOW);
+        float meanX = 0, meanY = 0;
+        for (int i = 0; i < mWindowCount; i++) {
+            meanX += mWindowX[i];
+            meanY += mWindowY[i];
+        }
+        meanX /= mWindowCount;
+        meanY /= mWindowCount;
+        float energy = 0;
+        for (int i = 0; i < mWindowCount; i++) {
+            float dx = mWindowX[i] - meanX;
+            float dy = mWindowY[i] - meanY;
+            energy += dx * dx + dy * dy;
+        }
+        energy /= mWindowCount;
+
+        long sample = mSampleCount++;
+        if (!mHasPrevious) {
+            mHasPrevious = true;
+            mPreviousX = x;
+            mPreviousY = y;
+            mPreviousRate = rate;
+            return;
+        }
+        float interval = mSampleInterval;
+        float dx = x - mPreviousX;
+        float dy = y - mPreviousY;
+        float jerk = (float) Math.sqrt(dx * dx + dy * dy) / interval;
+        float rateJump = Math.abs(rate - mPreviousRate);
+        float deltaX = dx, deltaY = dy;
+        mPreviousX = x;
+        mPreviousY = y;
+        mPreviousRate = rate;
+
+        // The impact starts with the first sample that gets halfway to either threshold
+        if (jerk >= jerkThreshold / 2 || energy >= energyThreshold / 2) {
+            if (mOnsetSample < 0) {
+                mOnsetSample = sample;
+            }
+        } else {
+            mOnsetSample = -1;
+        }
+
+        if (jerk < jerkThreshold || energy < energyThreshold) {
+            return;
+        }
+        if (mLastDetectionSample >= 0 && (sample - mLastDetectionSample) * interval * 1000 < deadTime) {
+            return;
+        }
+        mLastDetectionSample = sample;
+
+        // Each signal counts fully at twice its threshold, the gyro at its own threshold
+        float confidence = 0.35f * Math.min(1, jerk / (2 * jerkThreshold))
+                + 0.35f * Math.min(1, energy / (2 * energyThreshold))
+                + 0.3f * ((gyroThreshold > 0) ? Math.min(1, rateJump / gyroThreshold) : 0);
+        long onset = (mOnsetSample >= 0) ? mOnsetSample : sample;
+        long latency = Math.round((sample - onset) * interval * 1000) + Math.max(0, System.currentTimeMillis() - time);
+        mOnsetSample = -1;
+        mDetections++;
+
+        CollisionDetectedAsyncData collision = createCollision(time, x, y, deltaX, deltaY, jerk);
+        for (DetectionListener listener : mDetectionListeners) {
+            listener.onCollisionDetected(collision, confidence, latency);
+        }
+        for (CollisionListener listener : mCollisionListeners) {
+            listener.collisionDetected(collision);
+        }
+        onPhoneCollision(time);
+    }
+
+    /**
+     * Builds the event the firmware would have sent for the collision, so existing collision code can
+     * consume it.
+     */
+    private CollisionDetectedAsyncData createCollision(long time, float x, float y, float dx, float dy, float jerk) {
+        byte[] packet = new byte[5 + COLLISION_DATA_LENGTH + 1];
+        packet[0] = (byte) 0xFF;
+        packet[1] = (byte) 0xFE;
+        packet[2] = COLLISION_ID_CODE;
+        packet[3] = 0;
+        packet[4] = COLLISION_DATA_LENGTH + 1;
+
+        int i = 5;
+        i = putShort(packet, i, Math.round(x * 4096));
+        i = putShort(packet, i, Math.round(y * 4096));
+        i = putShort(packet, i, 0);
+        boolean xAxis = Math.abs(dx) >= Math.abs(dy) / 2;
+        boolean yAxis = Math.abs(dy) >= Math.abs(dx) / 2;
+        packet[i++] = (byte) ((xAxis ? 1 : 0) | (yAxis ? 2 : 0));
+        i = putShort(packet, i, Math.round(Math.abs(dx) * 1000));
+        i = putShort(packet, i, Math.round(Math.abs(dy) * 1000));
+        packet[i++] = (byte) Math.min(255, Math.round(jerk));
+
+        // The SDK adds the robot's clock offset back when it parses the time stamp
+        long robotTime = time - mRobot.getTimeOffset();
+        packet[i++] = (byte) (robotTime >> 24);
+        packet[i++] = (byte) (robotTime >> 16);
+        packet[i++] = (byte) (robotTime >> 8);
+        packet[i++] = (byte) robotTime;
+
+        int checksum = 0;
+        for (int j = 2; j < i; j++) {
+            checksum += packet[j] & 0xff;
+        }
+        packet[i] = (byte) ~checksum;
+        return new CollisionDetectedAsyncData(mRobot, packet);
+    }
+
+    private static int putShort(byte[] packet, int index, int value) {
+        value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        packet[index] = (byte) (value >> 8);
+        packet[index + 1] = (byte) value;
+        return index + 2;
+    }
+
+    private synchronized void onPhoneCollision(long time) {
+        if (!mCrossCheck) {
+            return;
+        }
+        expire(time);
+        int match = find(mPendingFirmware, mPendingFirmwareCount, time);
+        if (match >= 0) {
+            mMatched++;
+            mLeadSum += mPendingFirmware[match] - time;
+            mPendingFirmwareCount = remove(mPendingFirmware, mPendingFirmwareCount, match);
+        } else {
+            mPendingPhoneCount = append(mPendingPhone, mPendingPhoneCount, time);
+        }
+    }
+
+    private synchronized void onFirmwareCollision(long time) {
+        if (!mCrossCheck) {
+            return;
+        }
+        expire(time);
+        int match = find(mPendingPhone, mPendingPhoneCount, time);
+        if (match >= 0) {
+            mMatched++;
+            mLeadSum += time - mPendingPhone[match];
+            mPendingPhoneCount = remove(mPendingPhone, mPendingPhoneCount, match);
+        } else {
+            mPendingFirmwareCount = append(mPendingFirmware, mPendingFirmwareCount, time);
+        }
+    }
+
+    /**
+     * Counts events that found no counterpart within the match window.
+     */
+    private void expire(long now) {
+        while (mPendingPhoneCount > 0 && now - mPendingPhone[0] > mMatchWindow) {
+            mPhoneOnly++;
+            mPendingPhoneCount = remove(mPendingPhone, mPendingPhoneCount, 0);
+        }
+        while (mPendingFirmwareCount > 0 && now - mPendingFirmware[0] > mMatchWindow) {
+            mFirmwareOnly++;
+            mPendingFirmwareCount = remove(mPendingFirmware, mPendingFirmwareCount, 0);
+        }
+    }
+
+    private int find(long[] times, int count, long time) {
+        for (int i = 0; i < count; i++) {
+            if (Math.abs(times[i] - time) <= mMatchWindow) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int remove(long[] times, int count, int index) {
+        System.arraycopy(times, index + 1, times, index, count - index - 1);
+        return count - 1;
+    }
+
+    private int append(long[] times, int count, long time) {
+        if (count == MAX_PENDING) {
+            // Too many unmatched events to hold, the oldest can no longer match anyway
+            if (times == mPendingPhone) {
+                mPhoneOnly++;
+            } else {
+                mFirmwareOnly++;
+            }
+            count = remove(times, count, 0);
+        }
+        times[count] = time;
+        return count + 1;
+    }
+
+    /**
+     * @return the number of collisions detected on the phone
+     */
+    public long getDetectionCount() {
+        return mDetections;
+    }
+
+    /**
+     * @return the number of collisions both the phone and the firmware reported
+     */
+    public synchronized long getMatchedCount() {
+        return mMatched;
+    }
+
+    /**
+     * @return the number of phone detections the firmware didn't report
+     */
+    public synchronized long getPhoneOnlyCount() {
+        return mPhoneOnly;
+    }
+
+    /**
+     * @return the number of firmware events the phone didn't detect
+     */
+    public synchronized long getFirmwareOnlyCount() {
+        return mFirmwareOnly;
+    }
+
+    /**
+     * @return how much earlier, on average, the sample confirming a matched collision arrived on the phone
+     *         than the firmware's event, in milliseconds. Negative when the firmware's events arrive first.
+     */
+    public synchronized float getMeanLead() {
+        return (mMatched == 0) ? 0 : (float) mLeadSum / mMatched;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("detected=%d matched=%d phoneOnly=%d firmwareOnly=%d lead=%.0fms",
+                mDetections, mMatched, mPhoneOnly, mFirmwareOnly, getMeanLead());
+    }
+}
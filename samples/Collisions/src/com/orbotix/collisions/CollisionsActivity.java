@@ -3,6 +3,7 @@ package com.orbotix.collisions;
 import android.app.Activity;
 import android.os.Bundle;
 import android.os.SystemClock;
+import android.util.Log;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.TextView;
@@ -12,11 +13,17 @@ import orbotix.robot.base.Robot;
 import orbotix.robot.sensor.Acceleration;
 import orbotix.sphero.CollisionListener;
 import orbotix.sphero.ConnectionListener;
+import orbotix.sphero.SensorFlag;
 import orbotix.sphero.Sphero;
 import orbotix.view.connection.SpheroConnectionView;
 
 public class CollisionsActivity extends Activity {
 
+    private static final String TAG = "OBX-Collisions";
+
+    /** Rate the accelerometer and gyro are streamed at for the phone-side detector */
+    private static final int SENSOR_RATE = 100;
+
     private TextView mAccelXValueLabel;
     private TextView mAccelYValueLabel;
     private TextView mAccelZValueLabel;
@@ -32,6 +39,9 @@ public class CollisionsActivity extends Activity {
     /** The Sphero Connection View */
     private SpheroConnectionView mSpheroConnectionView;
 
+    /** Detects collisions on the phone and checks them against the firmware's */
+    private CollisionDetector mCollisionDetector;
+
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -75,6 +85,15 @@ public class CollisionsActivity extends Activity {
                 mRobot = (Sphero) robot;
                 mRobot.getCollisionControl().addCollisionListener(mCollisionListener);
                 mRobot.getCollisionControl().startDetection(45, 45, 100, 100, 100);
+
+                mCollisionDetector = new CollisionDetector(mRobot);
+                mCollisionDetector.setStreamingRate(SENSOR_RATE);
+                mCollisionDetector.setCrossCheck(true, 250);
+                mCollisionDetector.addDetectionListener(mDetectionListener);
+                mRobot.getCollisionControl().addCollisionListener(mCollisionDetector.getFirmwareListener());
+                mRobot.getSensorControl().setRate(SENSOR_RATE);
+                mRobot.getSensorControl().addSensorListener(mCollisionDetector,
+                        SensorFlag.ACCELEROMETER_NORMALIZED, SensorFlag.GYRO_NORMALIZED);
             }
 
             @Override
@@ -105,11 +124,25 @@ public class CollisionsActivity extends Activity {
             mRobot.getCollisionControl().stopDetection();
             // Remove async data listener
             mRobot.getCollisionControl().removeCollisionListener(mCollisionListener);
+            if (mCollisionDetector != null) {
+                mRobot.getSensorControl().removeSensorListener(mCollisionDetector);
+                mRobot.getCollisionControl().removeCollisionListener(mCollisionDetector.getFirmwareListener());
+                Log.d(TAG, "Phone detector: " + mCollisionDetector);
+                mCollisionDetector = null;
+            }
             // Disconnect Robot properly
             mRobot.disconnect();
         }
     }
 
+    private final CollisionDetector.DetectionListener mDetectionListener = new CollisionDetector.DetectionListener() {
+        @Override
+        public void onCollisionDetected(CollisionDetectedAsyncData collision, float confidence, long latency) {
+            Log.d(TAG, String.format("Phone detected a collision, confidence %.2f, latency %dms, %s",
+                    confidence, latency, mCollisionDetector));
+        }
+    };
+
     private final CollisionListener mCollisionListener = new CollisionListener() {
         public void collisionDetected(CollisionDetectedAsyncData collisionData) {
 
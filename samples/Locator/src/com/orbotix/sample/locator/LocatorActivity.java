@@ -14,6 +14,7 @@ import orbotix.robot.base.RollCommand;
 import orbotix.robot.sensor.LocatorData;
 import orbotix.sphero.ConnectionListener;
 import orbotix.sphero.LocatorListener;
+import orbotix.sphero.SensorFlag;
 import orbotix.sphero.Sphero;
 import orbotix.view.connection.SpheroConnectionView;
 
@@ -28,6 +29,15 @@ public class LocatorActivity extends Activity {
 
 //    private Handler mHandler = new Handler();
 
+    /** Position estimate between locator samples, which the navigation controller steers by */
+    private PositionEstimator mEstimator = new PositionEstimator();
+
+    /** Where the robot has been, simplified to within 2 cm */
+    private LocatorTrail mTrail = new LocatorTrail(256, 2);
+
+    /** Drives the robot back to the origin when Home is pressed */
+    private NavigationController mNavigationController;
+
     private LocatorListener mLocatorListener = new LocatorListener() {
         @Override
         public void onLocatorChanged(LocatorData locatorData) {
@@ -58,7 +68,23 @@ public class LocatorActivity extends Activity {
                 // Skip this next step if you want the user to be able to connect multiple Spheros
                 mSpheroConnectionView.setVisibility(View.INVISIBLE);
                 mRobot.getSensorControl().addLocatorListener(mLocatorListener);
+                mRobot.getSensorControl().addLocatorListener(mTrail);
+                mRobot.getSensorControl().addSensorListener(mEstimator, SensorFlag.LOCATOR, SensorFlag.VELOCITY,
+                        SensorFlag.GYRO_NORMALIZED, SensorFlag.MOTOR_BACKEMF_NORMALIZED);
                 mRobot.getSensorControl().setRate(5);
+
+                mNavigationController = new NavigationController(mRobot, mEstimator, 20);
+                mNavigationController.addNavigationListener(new NavigationController.NavigationListener() {
+                    @Override
+                    public void onWaypointReached(NavigationController controller, int index) {
+                    }
+
+                    @Override
+                    public void onArrived(NavigationController controller) {
+                        Log.d(TAG, "Arrived home: " + controller + ", travelled " + mTrail.getDistance() + " cm");
+                    }
+                });
+                mNavigationController.start();
             }
 
             @Override
@@ -86,8 +112,14 @@ public class LocatorActivity extends Activity {
     protected void onPause() {
         super.onPause();
         //Set the AsyncDataListener that will process each response.
+        if (mNavigationController != null) {
+            mNavigationController.shutdown();
+            mNavigationController = null;
+        }
         if (mRobot != null) {
             mRobot.getSensorControl().removeLocatorListener(mLocatorListener);
+            mRobot.getSensorControl().removeLocatorListener(mTrail);
+            mRobot.getSensorControl().removeSensorListener(mEstimator);
             mRobot.disconnect();           // Disconnect Robot properly
         }
     }
@@ -129,6 +161,8 @@ public class LocatorActivity extends Activity {
                 ConfigureLocatorCommand.ROTATE_WITH_CALIBRATE_FLAG_OFF;
 
         ConfigureLocatorCommand.sendCommand(mRobot, flag, newX, newY, newYaw);
+        mEstimator.reset();
+        mTrail.clear();
     }
 
     public void upPressed(View v) {
@@ -148,6 +182,15 @@ public class LocatorActivity extends Activity {
     }
 
     public void stopPressed(View v) {
+        if (mNavigationController != null) {
+            mNavigationController.cancel();
+        }
         mRobot.stop();
     }
+
+    public void homePressed(View v) {
+        if (mNavigationController != null && !mNavigationController.goTo(0, 0, 5)) {
+            Log.d(TAG, "No position estimate yet");
+        }
+    }
 }
@@ -0,0 +1,244 @@
+package com.orbotix.sample.locator;
+
+import orbotix.robot.sensor.LocatorData;
+import orbotix.sphero.LocatorListener;
+
+/**
+ * Where one robot has been, kept in a fixed amount of memory however long the session runs. Register the
+ * trail with {@link orbotix.sphero.SensorControl#addLocatorListener(LocatorListener)}.
+ *
+ * Samples are simplified as they arrive: the newest vertex keeps sliding forward as long as every sample
+ * it passed over stays within the error bound of the straight line, and a vertex is only fixed once the
+ * path bends away. When the trail is full, the vertex whose removal changes the shape least, the one
+ * spanning the smallest triangle with its neighbors, is dropped.
+ *
+ * Distance travelled and the bounding box are kept up to date over the raw samples, so those queries cost
+ * nothing. Distance only counts moves of more than the tolerance from the last counted position, so
+ * locator jitter while the robot stands still doesn't add up. Units are centimeters and phone milliseconds.
+ */
+public class LocatorTrail implements LocatorListener {
+
+    /** Most samples a sliding vertex can pass over before it is fixed anyway */
+    private static final int WINDOW = 32;
+
+    private final int mCapacity;
+    private final float[] mX;
+    private final float[] mY;
+    private final long[] mTime;
+    private int mCount = 0;
+
+    private float mTolerance;
+
+    // Samples the newest vertex slid over, checked against each new candidate line
+    private final float[] mWindowX = new float[WINDOW];
+    private final float[] mWindowY = new float[WINDOW];
+    private int mWindowCount = 0;
+
+    private long mSampleCount = 0;
+    // Last position the distance was counted to
+    private float mDistanceX, mDistanceY;
+    private double mDistance = 0;
+    private float mMinX, mMinY, mMaxX, mMaxY;
+
+    /**
+     * @param capacity the most vertices kept
+     * @param tolerance the furthest a sample may lie from the simplified path, in centimeters
+     */
+    public LocatorTrail(int capacity, float tolerance) {
+        if (capacity < 3) {
+            throw new IllegalArgumentException("capacity must be at least 3");
+        }
+        mCapacity = capacity;
+        mX = new float[capacity];
+        mY = new float[capacity];
+        mTime = new long[capacity];
+        mTolerance = tolerance;
+    }
+
+    /**
+     * Sets the error bound for samples added from now on.
+     *
+     * @param tolerance the furthest a sample may lie from the simplified path, in centimeters
+     */
+    public synchronized void setTolerance(float tolerance) {
+        mTolerance = tolerance;
+    }
+
+    @Override
+    public void onLocatorChanged(LocatorData data) {
+        if (data != null) {
+            add(data.getPositionX(), data.getPositionY(), data.getTimeStamp());
+        }
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param x the x position, in centimeters
+     * @param y the y position, in centimeters
+     * @param time the time, in phone milliseconds
+     */
+    public synchronized void add(float x, float y, long time) {
+        if (mSampleCount == 0) {
+            mMinX = mMaxX = x;
+            mMinY = mMaxY = y;
+            mDistanceX = x;
+            mDistanceY = y;
+        } else {
+            float dx = x - mDistanceX;
+            float dy = y - mDistanceY;
+            float step = (float) Math.sqrt(dx * dx + dy * dy);
+            if (step > mTolerance) {
+                mDistance += step;
+                mDistanceX = x;
+                mDistanceY = y;
+            }
+            mMinX = Math.min(mMinX, x);
+            mMaxX = Math.max(mMaxX, x);
+            mMinY = Math.min(mMinY, y);
+            mMaxY = Math.max(mMaxY, y);
+        }
+        mSampleCount++;
+
+        if (mCount >= 2 && mWindowCount < WINDOW && fitsLine(x, y)) {
+            // The newest vertex slides forward to the new sample
+            mWindowX[mWindowCount] = mX[mCount - 1];
+            mWindowY[mWindowCount] = mY[mCount - 1];
+            mWindowCount++;
+            set(mCount - 1, x, y, time);
+            return;
+        }
+
+        if (mCount == mCapacity) {
+            removeLeastSignificant();
+        }
+        set(mCount++, x, y, time);
+        mWindowCount = 0;
+    }
+
+    /**
+     * Checks that every sample the newest vertex slid over, and the vertex itself, lie within the
+     * tolerance of the line from the vertex before it to the new sample.
+     */
+    private boolean fitsLine(float x, float y) {
+        float ax = mX[mCount - 2];
+        float ay = mY[mCount - 2];
+        if (distance(mX[mCount - 1], mY[mCount - 1], ax, ay, x, y) > mTolerance) {
+            return false;
+        }
+        for (int i = 0; i < mWindowCount; i++) {
+            if (distance(mWindowX[i], mWindowY[i], ax, ay, x, y) > mTolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the distance from point p to the segment from a to b.
+     */
+    private static float distance(float px, float py, float ax, float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float lengthSquared = dx * dx + dy * dy;
+        float t = (lengthSquared == 0) ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        float ex = ax + t * dx - px;
+        float ey = ay + t * dy - py;
+        return (float) Math.sqrt(ex * ex + ey * ey);
+    }
+
+    private void set(int index, float x, float y, long time) {
+        mX[index] = x;
+        mY[index] = y;
+        mTime[index] = time;
+    }
+
+    private void removeLeastSignificant() {
+        // The end points stay, and so does the sliding vertex so its window stays valid
+        int best = 1;
+        float bestArea = Float.MAX_VALUE;
+        for (int i = 1; i < mCount - 2; i++) {
+            float area = Math.abs((mX[i - 1] - mX[i + 1]) * (mY[i] - mY[i - 1])
+                    - (mX[i - 1] - mX[i]) * (mY[i + 1] - mY[i - 1]));
+            if (area < bestArea) {
+                bestArea = area;
+                best = i;
+            }
+        }
+        int moved = mCount - best - 1;
+        System.arraycopy(mX, best + 1, mX, best, moved);
+        System.arraycopy(mY, best + 1, mY, best, moved);
+        System.arraycopy(mTime, best + 1, mTime, best, moved);
+        mCount--;
+    }
+
+    /**
+     * Forgets the trail.
+     */
+    public synchronized void clear() {
+        mCount = 0;
+        mWindowCount = 0;
+        mSampleCount = 0;
+        mDistance = 0;
+    }
+
+    /**
+     * Copies the simplified path, oldest vertex first.
+     *
+     * @param x receives the x positions
+     * @param y receives the y positions
+     * @param times receives the vertex times, may be null
+     * @return the number of vertices copied
+     */
+    public synchronized int getPolyline(float[] x, float[] y, long[] times) {
+        int n = Math.min(mCount, Math.min(x.length, y.length));
+        if (times != null) {
+            n = Math.min(n, times.length);
+            System.arraycopy(mTime, mCount - n, times, 0, n);
+        }
+        System.arraycopy(mX, mCount - n, x, 0, n);
+        System.arraycopy(mY, mCount - n, y, 0, n);
+        return n;
+    }
+
+    public synchronized int getVertexCount() {
+        return mCount;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the number of samples added
+     */
+    public synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return the distance travelled along the raw samples, ignoring moves within the tolerance, in
+     *         centimeters
+     */
+    public synchronized float getDistance() {
+        return (float) mDistance;
+    }
+
+    /**
+     * Returns the box every sample lies in.
+     *
+     * @param out receives min x, min y, max x and max y, in centimeters
+     * @return False, if there are no samples yet
+     */
+    public synchronized boolean getBounds(float[] out) {
+        if (mSampleCount == 0) {
+            return false;
+        }
+        out[0] = mMinX;
+        out[1] = mMinY;
+        out[2] = mMaxX;
+        out[3] = mMaxY;
+        return true;
+    }
+}
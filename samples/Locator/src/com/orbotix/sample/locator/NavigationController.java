@@ -0,0 +1,583 @@
+package com.orbotix.sample.locator;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import orbotix.robot.base.RollCommand;
+import orbotix.sphero.Sphero;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Drives one robot to a point, or along a list of waypoints, from its own position estimate.
+ *
+ * A control loop runs at a fixed rate on a dedicated thread. Each tick reads the position from a
+ * {@link PositionEstimator}, steers towards a point one lookahead distance further along the path (pure
+ * pursuit) and sets the speed from a PID on the distance left to go. A roll command is only sent when the
+ * heading or speed moved past a threshold, or to keep the robot alive, so the link isn't flooded with
+ * commands the robot is already executing.
+ *
+ * The estimate is only steered by while it is fresh and certain. When the newest sample is older than the
+ * age limit, such as when the stream stalls, or the predicted position error grows past its limit, the
+ * robot is stopped instead of driven on an extrapolated guess, and navigation carries on once fresh data
+ * arrives.
+ *
+ * Loop jitter, command rate and tracking error, the distance from the path, are kept for tuning. Units
+ * are centimeters and milliseconds. Headings follow the locator: 0 is +y and 90 is +x.
+ */
+public class NavigationController {
+
+    /**
+     * Notified on the controller thread as the robot gets where it was sent.
+     */
+    public interface NavigationListener {
+        /**
+         * @param index the index of the waypoint in the list given to the controller
+         */
+        public void onWaypointReached(NavigationController controller, int index);
+
+        public void onArrived(NavigationController controller);
+    }
+
+    private final Sphero mRobot;
+    private final PositionEstimator mEstimator;
+    private final long mPeriod;
+    private final CopyOnWriteArrayList<NavigationListener> mListeners = new CopyOnWriteArrayList<NavigationListener>();
+
+    private HandlerThread mThread;
+    private volatile Handler mHandler;
+    private long mNextTick;
+
+    // Path, guarded by this. Vertex 0 is where the robot was when it was sent off.
+    private float[] mPathX = new float[0];
+    private float[] mPathY = new float[0];
+    private int mSegment = 0;
+    private float mTolerance;
+    private boolean mNavigating = false;
+
+    private float mSpeedP = 0.008f;
+    private float mSpeedI = 0.001f;
+    private float mSpeedD = 0.002f;
+    private float mMinSpeed = 0.15f;
+    private float mMaxSpeed = 0.6f;
+    private float mLookahead = 20;
+
+    private float mHeadingThreshold = 3;
+    private float mSpeedThreshold = 0.03f;
+    private long mKeepAlive = 1000;
+
+    private long mMaxEstimateAge = 500;
+    private float mMaxPositionVariance = 15 * 15;
+
+    // Loop thread only
+    private final float[] mState = new float[4];
+    private float[] mFollowedPath = null;
+    private float mIntegral = 0;
+    private float mLastRemaining = -1;
+    private float mLastHeading = -1;
+    private float mLastSpeed = 0;
+    private long mLastCommandTime = 0;
+    private boolean mHolding = false;
+
+    // Metrics, written by the loop thread
+    private volatile long mTickCount = 0;
+    private volatile long mJitterSum = 0;
+    private volatile long mMaxJitter = 0;
+    private volatile long mCommandCount = 0;
+    private volatile long mActiveTime = 0;
+    private volatile double mErrorSquareSum = 0;
+    private volatile long mErrorCount = 0;
+    private volatile float mMaxError = 0;
+    private volatile float mTrackingError = 0;
+    private volatile long mHoldCount = 0;
+
+    private final Runnable mResetMetrics = new Runnable() {
+        @Override
+        public void run() {
+            clearMetrics();
+        }
+    };
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            long jitter = now - mNextTick;
+            mTickCount++;
+            mJitterSum += jitter;
+            mMaxJitter = Math.max(mMaxJitter, jitter);
+
+            tick();
+
+            // Fixed rate: ticks that were missed are skipped rather than run late in a burst
+            mNextTick += mPeriod;
+            if (mNextTick <= now) {
+                mNextTick += ((now - mNextTick) / mPeriod + 1) * mPeriod;
+            }
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.postAtTime(this, mNextTick);
+            }
+        }
+    };
+
+    /**
+     * @param robot the robot to drive
+     * @param estimator the estimator tracking the robot, registered for locator data
+     * @param rate the control loop rate in Hz
+     */
+    public NavigationController(Sphero robot, PositionEstimator estimator, int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        mRobot = robot;
+        mEstimator = estimator;
+        mPeriod = Math.max(1, 1000 / rate);
+    }
+
+    /**
+     * Starts the control loop. The robot is left alone until it is sent somewhere.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread("NavigationController", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mNextTick = SystemClock.uptimeMillis() + mPeriod;
+        mHandler.postAtTime(mTick, mNextTick);
+    }
+
+    /**
+     * Stops the robot if it is navigating and ends the control loop.
+     */
+    public synchronized void shutdown() {
+        if (mThread == null) {
+            return;
+        }
+        final boolean wasNavigating = mNavigating;
+        final HandlerThread thread = mThread;
+        mNavigating = false;
+        mHandler.removeCallbacks(mTick);
+        // The loop thread stops the robot itself, then ends, so the stop isn't lost with the queue
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (wasNavigating) {
+                    stopRobot();
+                }
+                thread.quit();
+            }
+        });
+        mThread = null;
+        mHandler = null;
+    }
+
+    public void addNavigationListener(NavigationListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeNavigationListener(NavigationListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Sends the robot to a point.
+     *
+     * @param x the x position, in centimeters
+     * @param y the y position, in centimeters
+     * @param tolerance how close counts as arrived, in centimeters
+     * @return False, if there is no position estimate to start from yet
+     */
+    public boolean goTo(float x, float y, float tolerance) {
+        return followPath(new float[]{x}, new float[]{y}, tolerance);
+    }
+
+    /**
+     * Sends the robot along a list of waypoints, in order.
+     *
+     * @param x the waypoint x positions, in centimeters
+     * @param y the waypoint y positions, in centimeters
+     * @param tolerance how close counts as reaching a waypoint, in centimeters
+     * @return False, if there is no position estimate to start from yet
+     */
+    public boolean followPath(float[] x, float[] y, float tolerance) {
+        int n = Math.min(x.length, y.length);
+        if (n == 0) {
+            throw new IllegalArgumentException("no waypoints");
+        }
+        float[] state = new float[4];
+        if (mEstimator.getState(System.currentTimeMillis(), state) < 0) {
+            return false;
+        }
+        float[] pathX = new float[n + 1];
+        float[] pathY = new float[n + 1];
+        pathX[0] = state[0];
+        pathY[0] = state[1];
+        System.arraycopy(x, 0, pathX, 1, n);
+        System.arraycopy(y, 0, pathY, 1, n);
+        synchronized (this) {
+            mPathX = pathX;
+            mPathY = pathY;
+            mSegment = 0;
+            mTolerance = tolerance;
+            mNavigating = true;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the robot and forgets where it was going.
+     */
+    public synchronized void cancel() {
+        if (!mNavigating) {
+            return;
+        }
+        mNavigating = false;
+        if (mHandler == null) {
+            RollCommand.sendStop(mRobot);
+        } else {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopRobot();
+                }
+            });
+        }
+    }
+
+    public synchronized boolean isNavigating() {
+        return mNavigating;
+    }
+
+    /**
+     * Sets the gains of the speed loop. The error is the distance left along the path, in centimeters,
+     * and the output a speed from 0 to 1.
+     */
+    public synchronized void setSpeedGains(float p, float i, float d) {
+        mSpeedP = p;
+        mSpeedI = i;
+        mSpeedD = d;
+    }
+
+    /**
+     * @param min the lowest speed driven while navigating, enough for the robot to actually roll
+     * @param max the highest speed driven while navigating
+     */
+    public synchronized void setSpeedRange(float min, float max) {
+        mMinSpeed = min;
+        mMaxSpeed = max;
+    }
+
+    /**
+     * @param lookahead how far along the path the robot steers towards, in centimeters
+     */
+    public synchronized void setLookahead(float lookahead) {
+        mLookahead = lookahead;
+    }
+
+    /**
+     * Sets when a new roll command is sent.
+     *
+     * @param heading the heading change that warrants a command, in degrees
+     * @param speed the speed change that warrants a command
+     * @param keepAlive the longest time without a command while navigating, in milliseconds
+     */
+    public synchronized void setCoalescing(float heading, float speed, long keepAlive) {
+        mHeadingThreshold = heading;
+        mSpeedThreshold = speed;
+        mKeepAlive = keepAlive;
+    }
+
+    /**
+     * Sets how fresh and certain the position estimate has to be to steer by. Past either limit the
+     * robot is stopped until the estimate is good again.
+     *
+     * @param maxAge the oldest the newest sample may be, in milliseconds
+     * @param maxError the largest predicted position error, one standard deviation, in centimeters
+     */
+    public synchronized void setEstimateLimits(long maxAge, float maxError) {
+        mMaxEstimateAge = maxAge;
+        mMaxPositionVariance = maxError * maxError;
+    }
+
+    private void tick() {
+        float[] pathX, pathY;
+        int segment;
+        float tolerance, p, i, d, minSpeed, maxSpeed, lookahead, maxVariance;
+        long maxAge;
+        synchronized (this) {
+            if (!mNavigating) {
+                return;
+            }
+            pathX = mPathX;
+            pathY = mPathY;
+            segment = mSegment;
+            tolerance = mTolerance;
+            p = mSpeedP;
+            i = mSpeedI;
+            d = mSpeedD;
+            minSpeed = mMinSpeed;
+            maxSpeed = mMaxSpeed;
+            lookahead = mLookahead;
+            maxAge = mMaxEstimateAge;
+            maxVariance = mMaxPositionVariance;
+        }
+        mActiveTime += mPeriod;
+        if (pathX != mFollowedPath) {
+            // A new path starts the speed loop afresh
+            mFollowedPath = pathX;
+            mIntegral = 0;
+            mLastRemaining = -1;
+        }
+        long now = System.currentTimeMillis();
+        float variance = mEstimator.getState(now, mState);
+        if (variance < 0) {
+            return;
+        }
+        if (now - mEstimator.getLastUpdateTime() > maxAge || variance > maxVariance) {
+            // The estimate is only extrapolating now, hold the robot rather than steer by a guess
+            if (!mHolding) {
+                mHolding = true;
+                mHoldCount++;
+                stopRobot();
+            }
+            return;
+        }
+        mHolding = false;
+        float x = mState[0];
+        float y = mState[1];
+        int last = pathX.length - 1;
+
+        // Move on past waypoints that were reached, or overtaken along the path
+        while (segment < last) {
+            int end = segment + 1;
+            boolean reached = distance(x, y, pathX[end], pathY[end]) <= tolerance
+                    || (end < last && project(x, y, pathX, pathY, segment) >= 1);
+            if (!reached) {
+                break;
+            }
+            segment = end;
+            if (!advance(pathX, segment)) {
+                return;
+            }
+            if (segment < last) {
+                for (NavigationListener listener : mListeners) {
+                    listener.onWaypointReached(this, segment - 1);
+                }
+            }
+        }
+        if (segment == last) {
+            synchronized (this) {
+                if (mPathX != pathX) {
+                    return;
+                }
+                mNavigating = false;
+            }
+            stopRobot();
+            for (NavigationListener listener : mListeners) {
+                listener.onWaypointReached(this, last - 1);
+                listener.onArrived(this);
+            }
+            return;
+        }
+
+        // Tracking error is the distance from the segment being followed
+        float t = Math.max(0, Math.min(1, project(x, y, pathX, pathY, segment)));
+        float px = pathX[segment] + t * (pathX[segment + 1] - pathX[segment]);
+        float py = pathY[segment] + t * (pathY[segment + 1] - pathY[segment]);
+        float error = distance(x, y, px, py);
+        mTrackingError = error;
+        mErrorSquareSum += error * error;
+        mErrorCount++;
+        mMaxError = Math.max(mMaxError, error);
+
+        // Distance left along the path, and the point one lookahead further on from the closest point
+        float remaining = distance(px, py, pathX[segment + 1], pathY[segment + 1]);
+        float targetX = pathX[last], targetY = pathY[last];
+        float ahead = lookahead;
+        float ax = px, ay = py;
+        for (int k = segment + 1; k <= last; k++) {
+            float length = distance(ax, ay, pathX[k], pathY[k]);
+            if (k > segment + 1) {
+                remaining += length;
+            }
+            if (ahead >= 0 && length >= ahead) {
+                float f = (length == 0) ? 0 : ahead / length;
+                targetX = ax + f * (pathX[k] - ax);
+                targetY = ay + f * (pathY[k] - ay);
+                ahead = -1;
+            } else if (ahead >= 0) {
+                ahead -= length;
+            }
+            ax = pathX[k];
+            ay = pathY[k];
+        }
+        remaining += error;
+
+        float heading = (float) Math.toDegrees(Math.atan2(targetX - x, targetY - y));
+        if (heading < 0) {
+            heading += 360;
+        }
+
+        float dt = mPeriod / 1000.0f;
+        float derivative = (mLastRemaining < 0) ? 0 : (remaining - mLastRemaining) / dt;
+        mLastRemaining = remaining;
+        float speed = p * remaining + i * mIntegral + d * derivative;
+        if (speed < maxSpeed) {
+            // Only wind up while the output isn't saturated
+            mIntegral += remaining * dt;
+        }
+        speed = Math.max(minSpeed, Math.min(maxSpeed, speed));
+
+        send(heading, speed);
+    }
+
+    /**
+     * Records progress to a new segment, unless the path was replaced in the meantime.
+     */
+    private synchronized boolean advance(float[] pathX, int segment) {
+        if (mPathX != pathX) {
+            return false;
+        }
+        mSegment = segment;
+        return true;
+    }
+
+    /**
+     * Returns where the point projects onto a segment, 0 at its start and 1 at its end.
+     */
+    private static float project(float x, float y, float[] pathX, float[] pathY, int segment) {
+        float dx = pathX[segment + 1] - pathX[segment];
+        float dy = pathY[segment + 1] - pathY[segment];
+        float lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return 1;
+        }
+        return ((x - pathX[segment]) * dx + (y - pathY[segment]) * dy) / lengthSquared;
+    }
+
+    private static float distance(float ax, float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private void send(float heading, float speed) {
+        long now = SystemClock.uptimeMillis();
+        float turn = Math.abs(heading - mLastHeading);
+        turn = Math.min(turn, 360 - turn);
+        if (mLastHeading >= 0 && turn < mHeadingThreshold && Math.abs(speed - mLastSpeed) < mSpeedThreshold
+                && now - mLastCommandTime < mKeepAlive) {
+            return;
+        }
+        RollCommand.sendCommand(mRobot, heading, speed);
+        mCommandCount++;
+        mLastHeading = heading;
+        mLastSpeed = speed;
+        mLastCommandTime = now;
+    }
+
+    private void stopRobot() {
+        RollCommand.sendStop(mRobot);
+        mCommandCount++;
+        mLastHeading = -1;
+        mLastSpeed = 0;
+        mLastRemaining = -1;
+        mIntegral = 0;
+    }
+
+    /**
+     * Clears the loop, command and tracking figures. While the loop runs, they are cleared on its thread.
+     */
+    public synchronized void resetMetrics() {
+        if (mHandler != null) {
+            mHandler.post(mResetMetrics);
+        } else {
+            clearMetrics();
+        }
+    }
+
+    private void clearMetrics() {
+        mTickCount = 0;
+        mJitterSum = 0;
+        mMaxJitter = 0;
+        mCommandCount = 0;
+        mActiveTime = 0;
+        mErrorSquareSum = 0;
+        mErrorCount = 0;
+        mMaxError = 0;
+        mHoldCount = 0;
+    }
+
+    /**
+     * @return how late loop ticks ran on average, in milliseconds
+     */
+    public float getMeanJitter() {
+        long ticks = mTickCount;
+        return (ticks == 0) ? 0 : (float) mJitterSum / ticks;
+    }
+
+    /**
+     * @return the latest a loop tick ran, in milliseconds
+     */
+    public long getMaxJitter() {
+        return mMaxJitter;
+    }
+
+    public long getTickCount() {
+        return mTickCount;
+    }
+
+    /**
+     * @return the number of roll commands sent, stops included
+     */
+    public long getCommandCount() {
+        return mCommandCount;
+    }
+
+    /**
+     * @return roll commands sent per second of navigating
+     */
+    public float getCommandRate() {
+        long time = mActiveTime;
+        return (time == 0) ? 0 : mCommandCount * 1000.0f / time;
+    }
+
+    /**
+     * @return the latest distance from the path, in centimeters
+     */
+    public float getTrackingError() {
+        return mTrackingError;
+    }
+
+    /**
+     * @return the root mean square distance from the path, in centimeters
+     */
+    public float getRmsTrackingError() {
+        long count = mErrorCount;
+        return (count == 0) ? 0 : (float) Math.sqrt(mErrorSquareSum / count);
+    }
+
+    /**
+     * @return the furthest the robot strayed from the path, in centimeters
+     */
+    public float getMaxTrackingError() {
+        return mMaxError;
+    }
+
+    /**
+     * @return the number of times the robot was stopped because the estimate was too old or uncertain
+     */
+    public long getHoldCount() {
+        return mHoldCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("jitter=%.1f/%dms commands=%.1f/s error=%.1f/%.1fcm holds=%d",
+                getMeanJitter(), mMaxJitter, getCommandRate(), getRmsTrackingError(), mMaxError, mHoldCount);
+    }
+}
@@ -0,0 +1,337 @@
+package com.orbotix.sample.locator;
+
+import orbotix.robot.sensor.BackEMFData;
+import orbotix.robot.sensor.BackEMFSensor;
+import orbotix.robot.sensor.DeviceSensorsData;
+import orbotix.robot.sensor.GyroData;
+import orbotix.robot.sensor.LocatorData;
+import orbotix.robot.sensor.LocatorSensor;
+import orbotix.robot.sensor.ThreeAxisSensor;
+import orbotix.sphero.SensorListener;
+
+/**
+ * Dead-reckoning estimate of one robot's position and velocity, so the robot can be drawn and steered at
+ * frame rate while the locator streams at a few Hz.
+ *
+ * The estimate is a Kalman filter over x, y and the velocity along each. Between samples the robot is
+ * assumed to keep its speed while turning at the rate the gyro last reported. Locator samples correct
+ * position and velocity. Back EMF, scaled by a factor learned from the locator, corrects the speed along
+ * the current heading on every frame as well, which catches the robot speeding up or slowing down sooner.
+ *
+ * The SDK hands out its sensor wrappers whether or not the sensor was streamed, with null inside for the
+ * ones that weren't, so a frame is checked for each sensor's values rather than for the wrappers.
+ *
+ * Register the estimator with {@link orbotix.sphero.SensorControl#addSensorListener} for
+ * {@link orbotix.sphero.SensorFlag#LOCATOR}, {@link orbotix.sphero.SensorFlag#VELOCITY},
+ * {@link orbotix.sphero.SensorFlag#GYRO_NORMALIZED} and
+ * {@link orbotix.sphero.SensorFlag#MOTOR_BACKEMF_NORMALIZED}, then query {@link #getState(long, float[])}
+ * whenever needed. Units are centimeters, seconds and phone milliseconds. Nothing is allocated per sample
+ * or query.
+ */
+public class PositionEstimator implements SensorListener {
+
+    /** GYRO_NORMALIZED units per degree per second */
+    private static final float GYRO_UNITS_PER_DPS = 10.0f;
+
+    /** Back EMF below this is treated as the robot standing still */
+    private static final float MIN_BACKEMF = 5;
+
+    // State x, y, vx, vy and its covariance, row major
+    private final float[] mState = new float[4];
+    private final float[] mCovariance = new float[16];
+    private long mTime = -1;
+    private float mTurnRate = 0;
+
+    // Scratch space, so nothing is allocated per sample
+    private final float[] mPredictedState = new float[4];
+    private final float[] mPredictedCovariance = new float[16];
+    private final float[] mTransition = new float[16];
+    private final float[] mProduct = new float[16];
+    private final float[] mObservation = new float[4];
+    private final float[] mGain = new float[4];
+
+    /** Variance of the acceleration the model doesn't explain, in (cm/s^2)^2 */
+    private float mAccelerationVariance = 100 * 100;
+    private float mPositionVariance = 2 * 2;
+    private float mVelocityVariance = 5 * 5;
+    private float mSpeedVariance = 10 * 10;
+
+    /** Centimeters per second per unit of back EMF, learned from the locator */
+    private float mBackEmfScale = 0;
+    private float mBackEmf = 0;
+
+    public PositionEstimator() {
+        reset();
+    }
+
+    /**
+     * Forgets the estimate. Call this after reconfiguring the locator.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < 4; i++) {
+            mState[i] = 0;
+        }
+        for (int i = 0; i < 16; i++) {
+            mCovariance[i] = 0;
+        }
+        // Nothing is known until the first locator sample
+        mCovariance[0] = mCovariance[5] = 1e6f;
+        mCovariance[10] = mCovariance[15] = 1e4f;
+        mTime = -1;
+        mTurnRate = 0;
+        mBackEmfScale = 0;
+        mBackEmf = 0;
+    }
+
+    /**
+     * Sets the noise figures the filter weighs the model and the sensors with.
+     *
+     * @param acceleration standard deviation of unmodeled acceleration, in cm/s^2
+     * @param position standard deviation of a locator position, in cm
+     * @param velocity standard deviation of a locator velocity, in cm/s
+     * @param speed standard deviation of the speed derived from back EMF, in cm/s
+     */
+    public synchronized void setNoise(float acceleration, float position, float velocity, float speed) {
+        mAccelerationVariance = acceleration * acceleration;
+        mPositionVariance = position * position;
+        mVelocityVariance = velocity * velocity;
+        mSpeedVariance = speed * speed;
+    }
+
+    @Override
+    public void sensorUpdated(DeviceSensorsData data) {
+        long time = data.getTimeStamp();
+        synchronized (this) {
+            advance(time);
+
+            GyroData gyro = data.getGyroData();
+            ThreeAxisSensor rate = (gyro != null) ? gyro.getRotationRateFiltered() : null;
+            if (rate != null) {
+                mTurnRate = (float) Math.toRadians(rate.z / GYRO_UNITS_PER_DPS);
+            }
+            BackEMFData backEmf = data.getBackEMFData();
+            BackEMFSensor emf = (backEmf != null) ? backEmf.getEMFFiltered() : null;
+            if (emf != null) {
+                mBackEmf = (emf.leftMotorValue + emf.rightMotorValue) / 2.0f;
+            }
+
+            LocatorData locator = data.getLocatorData();
+            if (locator != null) {
+                correctLocator(locator);
+            }
+            // The locator streams with every frame too, so back EMF is applied alongside it
+            if (emf != null) {
+                correctSpeed();
+            }
+        }
+    }
+
+    /**
+     * Feeds a locator sample, for use from a {@link orbotix.sphero.LocatorListener}.
+     *
+     * @param locator the sample
+     */
+    public synchronized void update(LocatorData locator) {
+        advance(locator.getTimeStamp());
+        correctLocator(locator);
+    }
+
+    private void advance(long time) {
+        if (mTime < 0) {
+            mTime = time;
+            return;
+        }
+        if (time <= mTime) {
+            return;
+        }
+        predict((time - mTime) / 1000.0f, mState, mCovariance);
+        mTime = time;
+    }
+
+    private void correctLocator(LocatorData locator) {
+        LocatorSensor position = locator.getPosition();
+        if (position != null) {
+            correctComponent(0, position.x, mPositionVariance);
+            correctComponent(1, position.y, mPositionVariance);
+        }
+
+        LocatorSensor velocity = locator.getVelocity();
+        if (velocity == null) {
+            return;
+        }
+        float vx = velocity.x;
+        float vy = velocity.y;
+
+        // Learn how back EMF maps to speed while the robot is clearly moving
+        float speed = (float) Math.sqrt(vx * vx + vy * vy);
+        if (Math.abs(mBackEmf) > MIN_BACKEMF && speed > 1) {
+            float scale = speed / Math.abs(mBackEmf);
+            mBackEmfScale = (mBackEmfScale == 0) ? scale : mBackEmfScale + 0.1f * (scale - mBackEmfScale);
+        }
+
+        correctComponent(2, vx, mVelocityVariance);
+        correctComponent(3, vy, mVelocityVariance);
+    }
+
+    private void correctSpeed() {
+        if (mBackEmfScale == 0) {
+            return;
+        }
+        float vx = mState[2];
+        float vy = mState[3];
+        float speed = (float) Math.sqrt(vx * vx + vy * vy);
+        if (speed < 1) {
+            // No heading to measure the speed along
+            return;
+        }
+        mObservation[0] = 0;
+        mObservation[1] = 0;
+        mObservation[2] = vx / speed;
+        mObservation[3] = vy / speed;
+        correct(mObservation, Math.abs(mBackEmf) * mBackEmfScale, mSpeedVariance);
+    }
+
+    private void correctComponent(int index, float measurement, float variance) {
+        for (int i = 0; i < 4; i++) {
+            mObservation[i] = (i == index) ? 1 : 0;
+        }
+        correct(mObservation, measurement, variance);
+    }
+
+    /**
+     * Kalman update with a scalar measurement of h . state.
+     */
+    private void correct(float[] h, float measurement, float variance) {
+        float innovation = measurement;
+        float s = variance;
+        for (int i = 0; i < 4; i++) {
+            innovation -= h[i] * mState[i];
+            float ph = 0;
+            for (int j = 0; j < 4; j++) {
+                ph += mCovariance[i * 4 + j] * h[j];
+            }
+            mGain[i] = ph;
+            s += h[i] * ph;
+        }
+        for (int i = 0; i < 4; i++) {
+            mGain[i] /= s;
+            mState[i] += mGain[i] * innovation;
+        }
+        // P = P - K (h P), with h P the transpose of the unscaled gain since P is symmetric
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                mProduct[i * 4 + j] = mCovariance[i * 4 + j] - mGain[i] * mGain[j] * s;
+            }
+        }
+        System.arraycopy(mProduct, 0, mCovariance, 0, 16);
+    }
+
+    /**
+     * Moves a state and covariance forward by dt seconds, turning the velocity at the gyro's rate.
+     */
+    private void predict(float dt, float[] state, float[] covariance) {
+        float angle = mTurnRate * dt;
+        float c = (float) Math.cos(angle);
+        float s = (float) Math.sin(angle);
+
+        float[] f = mTransition;
+        for (int i = 0; i < 16; i++) {
+            f[i] = 0;
+        }
+        f[0] = 1;
+        f[2] = dt;
+        f[5] = 1;
+        f[7] = dt;
+        f[10] = c;
+        f[11] = -s;
+        f[14] = s;
+        f[15] = c;
+
+        float x = state[0], y = state[1], vx = state[2], vy = state[3];
+        state[0] = x + vx * dt;
+        state[1] = y + vy * dt;
+        state[2] = c * vx - s * vy;
+        state[3] = s * vx + c * vy;
+
+        // P = F P F^T + Q
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                float sum = 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += f[i * 4 + k] * covariance[k * 4 + j];
+                }
+                mProduct[i * 4 + j] = sum;
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                float sum = 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += mProduct[i * 4 + k] * f[j * 4 + k];
+                }
+                covariance[i * 4 + j] = sum;
+            }
+        }
+        // Constant acceleration noise over the interval
+        float q = mAccelerationVariance;
+        float dt2 = dt * dt;
+        covariance[0] += q * dt2 * dt2 / 4;
+        covariance[5] += q * dt2 * dt2 / 4;
+        covariance[2] += q * dt2 * dt / 2;
+        covariance[8] += q * dt2 * dt / 2;
+        covariance[7] += q * dt2 * dt / 2;
+        covariance[13] += q * dt2 * dt / 2;
+        covariance[10] += q * dt2;
+        covariance[15] += q * dt2;
+    }
+
+    /**
+     * Predicts the state at the given time without changing the estimate.
+     *
+     * @param time the time, in phone milliseconds
+     * @param out receives x, y, vx and vy, in cm and cm/s
+     * @return the predicted position variance, the mean of the x and y variances in cm^2, or -1 if
+     *         there is no estimate yet
+     */
+    public synchronized float getState(long time, float[] out) {
+        if (mTime < 0) {
+            return -1;
+        }
+        System.arraycopy(mState, 0, mPredictedState, 0, 4);
+        System.arraycopy(mCovariance, 0, mPredictedCovariance, 0, 16);
+        if (time > mTime) {
+            predict((time - mTime) / 1000.0f, mPredictedState, mPredictedCovariance);
+        }
+        System.arraycopy(mPredictedState, 0, out, 0, 4);
+        return (mPredictedCovariance[0] + mPredictedCovariance[5]) / 2;
+    }
+
+    /**
+     * Predicts the covariance at the given time without changing the estimate.
+     *
+     * @param time the time, in phone milliseconds
+     * @param out receives the 4 by 4 covariance of x, y, vx and vy, row major
+     */
+    public synchronized void getCovariance(long time, float[] out) {
+        System.arraycopy(mState, 0, mPredictedState, 0, 4);
+        System.arraycopy(mCovariance, 0, mPredictedCovariance, 0, 16);
+        if (mTime >= 0 && time > mTime) {
+            predict((time - mTime) / 1000.0f, mPredictedState, mPredictedCovariance);
+        }
+        System.arraycopy(mPredictedCovariance, 0, out, 0, 16);
+    }
+
+    /**
+     * @return the time of the newest sample, or -1 before the first one
+     */
+    public synchronized long getLastUpdateTime() {
+        return mTime;
+    }
+
+    /**
+     * @return the learned speed per unit of back EMF, in cm/s, or 0 until the robot has moved
+     */
+    public synchronized float getBackEmfScale() {
+        return mBackEmfScale;
+    }
+}
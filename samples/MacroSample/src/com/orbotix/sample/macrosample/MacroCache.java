@@ -0,0 +1,158 @@
+package com.orbotix.sample.macrosample;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import orbotix.macro.MacroCommand;
+import orbotix.macro.MacroObject;
+import orbotix.robot.base.Robot;
+import orbotix.robot.base.RunMacroCommand;
+import orbotix.robot.base.SaveTemporaryMacroCommand;
+
+/**
+ * Keeps compiled macro data, so a macro that was built before is not assembled again. Get the data once
+ * with {@link #getMacroData(MacroObject)} and hand it to {@link #send(byte[], Robot)} for each robot, so a
+ * macro sent to several robots is looked up and compiled once for all of them.
+ *
+ * Entries are keyed by the macro's command bytes, found by a 64 bit hash over them and compared in full,
+ * so two separately built macros with the same commands share an entry and a hash collision can't hand
+ * out another macro's data. Building the key encodes every command, so a hit saves assembling and copying
+ * the macro data, not encoding the commands. When the cache is full, the least recently used entry is
+ * dropped.
+ */
+public class MacroCache
+{
+	private final int mCapacity;
+	private final LinkedHashMap<Key, byte[]> mEntries;
+
+	private long mHits = 0;
+	private long mMisses = 0;
+	private long mEvictions = 0;
+
+	/**
+	 * @param capacity the most compiled macros kept
+	 */
+	public MacroCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		mCapacity = capacity;
+		mEntries = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+				if (size() > mCapacity) {
+					mEvictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the data {@link MacroObject#generateMacroData()} would, compiling it only if no macro with
+	 * the same commands was compiled before. The array is shared, so don't change it.
+	 *
+	 * @param macro the macro
+	 * @return the compiled macro
+	 */
+	public byte[] getMacroData(MacroObject macro) {
+		Key key = new Key(macro);
+		synchronized (this) {
+			byte[] data = mEntries.get(key);
+			if (data != null) {
+				mHits++;
+				return data;
+			}
+			mMisses++;
+		}
+		byte[] data = macro.generateMacroData();
+		synchronized (this) {
+			mEntries.put(key, data);
+		}
+		return data;
+	}
+
+	/**
+	 * Uploads compiled macro data as the robot's temporary macro and runs it, like
+	 * {@link orbotix.sphero.Sphero#executeMacro} does for {@link MacroObject.MacroObjectMode#Normal} macros.
+	 *
+	 * @param macroData the data from {@link #getMacroData(MacroObject)}
+	 * @param robot the robot to run it on
+	 */
+	public static void send(byte[] macroData, Robot robot) {
+		SaveTemporaryMacroCommand.sendCommand(robot, SaveTemporaryMacroCommand.MacroFlagMotorControl, macroData);
+		RunMacroCommand.sendCommand(robot, RunMacroCommand.TEMPORARY_MACRO_ID);
+	}
+
+	/**
+	 * Each command's id, length and bytes, hashed with FNV-1a.
+	 */
+	private static final class Key {
+		private final byte[] mBytes;
+		private final long mHash;
+
+		Key(MacroObject macro) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ArrayList<MacroCommand> commands = macro.getCommands();
+			for (int i = 0; i < commands.size(); i++) {
+				MacroCommand command = commands.get(i);
+				int length = command.getLength();
+				out.write(command.getCommandId());
+				out.write(length >> 8);
+				out.write(length);
+				out.write(command.getByteRepresentation(), 0, length);
+			}
+			mBytes = out.toByteArray();
+
+			long hash = 0xcbf29ce484222325L;
+			for (int i = 0; i < mBytes.length; i++) {
+				hash = (hash ^ (mBytes[i] & 0xff)) * 0x100000001b3L;
+			}
+			mHash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (mHash ^ (mHash >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return mHash == other.mHash && Arrays.equals(mBytes, other.mBytes);
+		}
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+	}
+
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return mHits;
+	}
+
+	public synchronized long getMissCount() {
+		return mMisses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return mEvictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("size=%d/%d hits=%d misses=%d evictions=%d",
+				mEntries.size(), mCapacity, mHits, mMisses, mEvictions);
+	}
+}
@@ -50,6 +50,12 @@ public class MacroSample extends Activity
 	private SpheroConnectionView mSpheroConnectionView;
 	private Button mDoneButton;
 
+	/**
+	 * Compiled macros, so pressing a button again with the same settings doesn't compile again. Each button
+	 * builds its macro once, gets the compiled data here once, and sends that data to every connected robot.
+	 */
+	private MacroCache mMacroCache = new MacroCache(16);
+
 	/** Called when the activity is first created. */
 	@Override
 	public void onCreate(Bundle savedInstanceState)
@@ -182,44 +188,45 @@ public class MacroSample extends Activity
 		returnSpheroToStableState();
 
 		if(mRobots.size() > 0){
+			float speed = ((float)(speedValue))/10.0f;
+			//Create a new macro object to send to Sphero
+			MacroObject squareMacro = new MacroObject();
+			//Change Color
+			squareMacro.addCommand(new RGB(0, 255, 0, 255));
+			//Sphero drives forward in the 0 angle
+			squareMacro.addCommand(new Roll(speed, 0, 0));
+			//You must delay after a roll command, since the roll command does not itself
+			squareMacro.addCommand(new Delay(delayValue));
+			//Have Sphero to come to stop to make sharp turn
+			squareMacro.addCommand(new Roll(0.0f,0,255));
+			//Change Color
+			squareMacro.addCommand(new RGB(0, 0, 255, 255));
+			//Sphero drives forward in the 90 angle
+			squareMacro.addCommand(new Roll(speed, 90, 0));
+			squareMacro.addCommand(new Delay(delayValue));
+			//Have Sphero to come to stop to make sharp turn
+			squareMacro.addCommand(new Roll(0.0f,90,255));
+			//Change Color
+			squareMacro.addCommand(new RGB(255, 255, 0, 255));
+			//Sphero drives forward in the 180 angle
+			squareMacro.addCommand(new Roll(speed, 180, 0));
+			squareMacro.addCommand(new Delay(delayValue));
+			//Have Sphero to come to stop to make sharp turn
+			squareMacro.addCommand(new Roll(0.0f,180,255));
+			//Change Color
+			squareMacro.addCommand(new RGB(255, 0, 0, 255));
+			//Sphero drives forward in the 270 angle
+			squareMacro.addCommand(new Roll(speed, 270, 0));
+			squareMacro.addCommand(new Delay(delayValue));
+			//Have Sphero to come to stop to make sharp turn
+			squareMacro.addCommand(new Roll(0.0f,270,255));
+			//Change Color
+			squareMacro.addCommand(new RGB(255, 255, 255, 255));        
+			squareMacro.addCommand(new Roll(0.0f,0,255));
+
+			byte[] squareData = mMacroCache.getMacroData(squareMacro);
 			for( Sphero sphero : mRobots ) {
-				float speed = ((float)(speedValue))/10.0f;
-				//Create a new macro object to send to Sphero
-				MacroObject squareMacro = new MacroObject();
-				//Change Color
-				squareMacro.addCommand(new RGB(0, 255, 0, 255));
-				//Sphero drives forward in the 0 angle
-				squareMacro.addCommand(new Roll(speed, 0, 0));
-				//You must delay after a roll command, since the roll command does not itself
-				squareMacro.addCommand(new Delay(delayValue));
-				//Have Sphero to come to stop to make sharp turn
-				squareMacro.addCommand(new Roll(0.0f,0,255));
-				//Change Color
-				squareMacro.addCommand(new RGB(0, 0, 255, 255));
-				//Sphero drives forward in the 90 angle
-				squareMacro.addCommand(new Roll(speed, 90, 0));
-				squareMacro.addCommand(new Delay(delayValue));
-				//Have Sphero to come to stop to make sharp turn
-				squareMacro.addCommand(new Roll(0.0f,90,255));
-				//Change Color
-				squareMacro.addCommand(new RGB(255, 255, 0, 255));
-				//Sphero drives forward in the 180 angle
-				squareMacro.addCommand(new Roll(speed, 180, 0));
-				squareMacro.addCommand(new Delay(delayValue));
-				//Have Sphero to come to stop to make sharp turn
-				squareMacro.addCommand(new Roll(0.0f,180,255));
-				//Change Color
-				squareMacro.addCommand(new RGB(255, 0, 0, 255));
-				//Sphero drives forward in the 270 angle
-				squareMacro.addCommand(new Roll(speed, 270, 0));
-				squareMacro.addCommand(new Delay(delayValue));
-				//Have Sphero to come to stop to make sharp turn
-				squareMacro.addCommand(new Roll(0.0f,270,255));
-				//Change Color
-				squareMacro.addCommand(new RGB(255, 255, 255, 255));        
-				squareMacro.addCommand(new Roll(0.0f,0,255));
-
-                sphero.executeMacro(squareMacro);
+				MacroCache.send(squareData, sphero);
 			}
 		}
 	}
@@ -233,22 +240,24 @@ public class MacroSample extends Activity
 		returnSpheroToStableState();
 
 		if(mRobots.size() > 0){
+			//Create a new macro object to send to Sphero
+			MacroObject fadeMacro = new MacroObject();
+			fadeMacro.addCommand(new LoopStart(loopValue));
+			// Fade the color from the current to purple
+			fadeMacro.addCommand(new Fade(0, 255, 255, delayValue));
+			// You must delay because, like the roll command, this does not delay for you
+			fadeMacro.addCommand(new Delay(delayValue));
+			// Fade the color from purple to yellow
+			fadeMacro.addCommand(new Fade(255, 0, 255, delayValue));
+			fadeMacro.addCommand(new Delay(delayValue));
+			// Fade the color from yellow to whatever this next color is
+			fadeMacro.addCommand(new Fade(255, 255, 0, delayValue));
+			fadeMacro.addCommand(new Delay(delayValue));
+			fadeMacro.addCommand(new LoopEnd());
+
+			byte[] fadeData = mMacroCache.getMacroData(fadeMacro);
 			for( Sphero sphero : mRobots ) {
-				//Create a new macro object to send to Sphero
-				MacroObject fadeMacro = new MacroObject();
-				fadeMacro.addCommand(new LoopStart(loopValue));
-				// Fade the color from the current to purple
-				fadeMacro.addCommand(new Fade(0, 255, 255, delayValue));
-				// You must delay because, like the roll command, this does not delay for you
-				fadeMacro.addCommand(new Delay(delayValue));
-				// Fade the color from purple to yellow
-				fadeMacro.addCommand(new Fade(255, 0, 255, delayValue));
-				fadeMacro.addCommand(new Delay(delayValue));
-				// Fade the color from yellow to whatever this next color is
-				fadeMacro.addCommand(new Fade(255, 255, 0, delayValue));
-				fadeMacro.addCommand(new Delay(delayValue));
-				fadeMacro.addCommand(new LoopEnd());
-                sphero.executeMacro(fadeMacro);
+				MacroCache.send(fadeData, sphero);
 			}
 		}
 	}
@@ -264,29 +273,30 @@ public class MacroSample extends Activity
 		if( loopValue == 0 ) return;
 
 		if(mRobots.size() > 0){
-			for( Sphero mRobot : mRobots ) {
-				float speed = ((float)(speedValue))/10.0f;
-				//Create a new macro object to send to Sphero
-				MacroObject shapeMacro = new MacroObject();
+			float speed = ((float)(speedValue))/10.0f;
+			//Create a new macro object to send to Sphero
+			MacroObject shapeMacro = new MacroObject();
+			//Change Color
+			shapeMacro.addCommand(new RGB(0, 0, 255, 255));
+
+			for (int i = 0; i < loopValue; ++i) {
 				//Change Color
-				shapeMacro.addCommand(new RGB(0, 0, 255, 255));
-
-				for (int i = 0; i < loopValue; ++i) {
-					//Change Color
-					shapeMacro.addCommand(new RGB(0, 255, 0, 255));
-					// Change direciton to roll in incraments of a 360
-					shapeMacro.addCommand(new Roll(speed,i*(360 / loopValue),0));
-					shapeMacro.addCommand(new Delay(delayValue));
-					//Come to Stop
-					shapeMacro.addCommand(new Roll(0.0f,i*(360 / loopValue),255));  
-				}
-				shapeMacro.addCommand(new Roll(0.0f,0,255)); 
-				
-				//Set Macro size
-				shapeMacro.setMode(MacroObject.MacroObjectMode.Normal);
-				shapeMacro.setRobot(mRobot);
-				//Send Macro
-                mRobot.executeMacro(shapeMacro);
+				shapeMacro.addCommand(new RGB(0, 255, 0, 255));
+				// Change direciton to roll in incraments of a 360
+				shapeMacro.addCommand(new Roll(speed,i*(360 / loopValue),0));
+				shapeMacro.addCommand(new Delay(delayValue));
+				//Come to Stop
+				shapeMacro.addCommand(new Roll(0.0f,i*(360 / loopValue),255));  
+			}
+			shapeMacro.addCommand(new Roll(0.0f,0,255)); 
+			
+			//Set Macro size
+			shapeMacro.setMode(MacroObject.MacroObjectMode.Normal);
+
+			//Send Macro
+			byte[] shapeData = mMacroCache.getMacroData(shapeMacro);
+			for( Sphero mRobot : mRobots ) {
+				MacroCache.send(shapeData, mRobot);
 			}
 		}
 	}
@@ -300,29 +310,30 @@ public class MacroSample extends Activity
 		returnSpheroToStableState();
 
 		if(mRobots.size() > 0){
+			float speed = ((float)(speedValue))/10.0f;
+			//Create a new macro object to send to Sphero
+			MacroObject figure8Macro = new MacroObject();
+			//Tell Robot to look forward and to start driving
+			figure8Macro.addCommand(new Roll(speed, 0, 1000));
+			//Start loop without slowing down
+			figure8Macro.addCommand(new LoopStart(loopValue));
+			///Tell Robot to perform 1st turn in the postive direction.
+			figure8Macro.addCommand(new RotateOverTime(360, delayValue));
+			//Add delay to allow the rotateovertime command to perform.
+			figure8Macro.addCommand(new Delay(delayValue));
+			//Rotate to perform the 2nd turn in the negitive direction
+			figure8Macro.addCommand(new RotateOverTime(-360, delayValue));
+			//Add delay to allow the rotateovertime command to perform.
+			figure8Macro.addCommand(new Delay(delayValue));
+			//End Loop
+			figure8Macro.addCommand(new LoopEnd());
+			//Come to Stop
+			figure8Macro.addCommand(new Roll(0.0f,0,255));
+			figure8Macro.setMode(MacroObject.MacroObjectMode.Normal);
+
+			byte[] figure8Data = mMacroCache.getMacroData(figure8Macro);
 			for( Sphero mRobot : mRobots ) {
-				float speed = ((float)(speedValue))/10.0f;
-				//Create a new macro object to send to Sphero
-				MacroObject figure8Macro = new MacroObject();
-				//Tell Robot to look forward and to start driving
-				figure8Macro.addCommand(new Roll(speed, 0, 1000));
-				//Start loop without slowing down
-				figure8Macro.addCommand(new LoopStart(loopValue));
-				///Tell Robot to perform 1st turn in the postive direction.
-				figure8Macro.addCommand(new RotateOverTime(360, delayValue));
-				//Add delay to allow the rotateovertime command to perform.
-				figure8Macro.addCommand(new Delay(delayValue));
-				//Rotate to perform the 2nd turn in the negitive direction
-				figure8Macro.addCommand(new RotateOverTime(-360, delayValue));
-				//Add delay to allow the rotateovertime command to perform.
-				figure8Macro.addCommand(new Delay(delayValue));
-				//End Loop
-				figure8Macro.addCommand(new LoopEnd());
-				//Come to Stop
-				figure8Macro.addCommand(new Roll(0.0f,0,255));
-				figure8Macro.setMode(MacroObject.MacroObjectMode.Normal);
-				figure8Macro.setRobot(mRobot);
-                mRobot.executeMacro(figure8Macro);
+				MacroCache.send(figure8Data, mRobot);
 			}
 		}
 	}
@@ -336,26 +347,27 @@ public class MacroSample extends Activity
 		returnSpheroToStableState();
 
 		if(mRobots.size() > 0){
+			//Create a new macro object to send to Sphero
+			MacroObject vibrateMacro = new MacroObject();
+			vibrateMacro.addCommand(new RGB(255, 0, 0, 0));
+			// You must turn stabilization off to use the raw motors
+			vibrateMacro.addCommand(new Stabilization(false,0));
+			vibrateMacro.addCommand(new LoopStart(delayValue/50));
+			// Run both motors forward for a milli second
+			vibrateMacro.addCommand(new RawMotor(RawMotor.DriveMode.FORWARD, 90, RawMotor.DriveMode.FORWARD, 90, 0));
+			vibrateMacro.addCommand(new Delay(1));
+			// Run both motors backward for a milli second (to simulate a vibration)
+			vibrateMacro.addCommand(new RawMotor(RawMotor.DriveMode.REVERSE, 90, RawMotor.DriveMode.REVERSE, 90, 0));
+			vibrateMacro.addCommand(new Delay(1));
+			vibrateMacro.addCommand(new LoopEnd());
+			// Remember to turn stabilization back on to avoid difficulties driving
+			vibrateMacro.addCommand(new Stabilization(true,0));
+			vibrateMacro.addCommand(new RGB(0, 255, 0, 0));
+			vibrateMacro.setMode(MacroObject.MacroObjectMode.Normal);
+
+			byte[] vibrateData = mMacroCache.getMacroData(vibrateMacro);
 			for( Sphero mRobot : mRobots ) {
-				//Create a new macro object to send to Sphero
-				MacroObject vibrateMacro = new MacroObject();
-				vibrateMacro.addCommand(new RGB(255, 0, 0, 0));
-				// You must turn stabilization off to use the raw motors
-				vibrateMacro.addCommand(new Stabilization(false,0));
-				vibrateMacro.addCommand(new LoopStart(delayValue/50));
-				// Run both motors forward for a milli second
-				vibrateMacro.addCommand(new RawMotor(RawMotor.DriveMode.FORWARD, 90, RawMotor.DriveMode.FORWARD, 90, 0));
-				vibrateMacro.addCommand(new Delay(1));
-				// Run both motors backward for a milli second (to simulate a vibration)
-				vibrateMacro.addCommand(new RawMotor(RawMotor.DriveMode.REVERSE, 90, RawMotor.DriveMode.REVERSE, 90, 0));
-				vibrateMacro.addCommand(new Delay(1));
-				vibrateMacro.addCommand(new LoopEnd());
-				// Remember to turn stabilization back on to avoid difficulties driving
-				vibrateMacro.addCommand(new Stabilization(true,0));
-				vibrateMacro.addCommand(new RGB(0, 255, 0, 0));
-				vibrateMacro.setMode(MacroObject.MacroObjectMode.Normal);
-				vibrateMacro.setRobot(mRobot);
-                mRobot.executeMacro(vibrateMacro);
+				MacroCache.send(vibrateData, mRobot);
 			}
 		}
 	}
@@ -368,22 +380,23 @@ public class MacroSample extends Activity
 	public void spinMacroClicked(View v) {
 		returnSpheroToStableState();
 		if(mRobots.size() > 0){
+			//Create a new macro object to send to Sphero
+			MacroObject spinMacro = new MacroObject();
+			// Turn on the tail light
+			spinMacro.addCommand(new BackLED(255, 0));
+			spinMacro.addCommand(new LoopStart(loopValue));
+			// Tell Sphero to rotate over time 360 degrees at a certain speed
+			spinMacro.addCommand(new RotateOverTime(360, 2000/speedValue));
+			// Rotate over time requires a delay as well
+			spinMacro.addCommand(new Delay(2000/speedValue));
+			spinMacro.addCommand(new LoopEnd());
+			// Turn off the back led
+			spinMacro.addCommand(new BackLED(0, 0));
+			spinMacro.setMode(MacroObject.MacroObjectMode.Normal);
+
+			byte[] spinData = mMacroCache.getMacroData(spinMacro);
 			for( Sphero mRobot : mRobots ) {
-				//Create a new macro object to send to Sphero
-				MacroObject spinMacro = new MacroObject();
-				// Turn on the tail light
-				spinMacro.addCommand(new BackLED(255, 0));
-				spinMacro.addCommand(new LoopStart(loopValue));
-				// Tell Sphero to rotate over time 360 degrees at a certain speed
-				spinMacro.addCommand(new RotateOverTime(360, 2000/speedValue));
-				// Rotate over time requires a delay as well
-				spinMacro.addCommand(new Delay(2000/speedValue));
-				spinMacro.addCommand(new LoopEnd());
-				// Turn off the back led
-				spinMacro.addCommand(new BackLED(0, 0));
-				spinMacro.setMode(MacroObject.MacroObjectMode.Normal);
-				spinMacro.setRobot(mRobot);
-                mRobot.executeMacro(spinMacro);
+				MacroCache.send(spinData, mRobot);
 			}
 		}
 	}
@@ -397,22 +410,23 @@ public class MacroSample extends Activity
 		returnSpheroToStableState();
 
 		if(mRobots.size() > 0){
+			//Create a new macro object to send to Sphero
+			MacroObject flipMacro = new MacroObject();
+			flipMacro.addCommand(new RGB(0, 0, 255, 0));
+			// You must turn stabilization off to use the raw motors
+			flipMacro.addCommand(new Stabilization(false,0));
+			// Run both motors forward at full power
+			flipMacro.addCommand(new RawMotor(RawMotor.DriveMode.FORWARD, 255, RawMotor.DriveMode.FORWARD, 255, 0));
+			// Delay for a certain time period
+			flipMacro.addCommand(new Delay(delayValue));
+			// Remember to turn stabilization back on
+			flipMacro.addCommand(new Stabilization(true,0));
+			flipMacro.addCommand(new RGB(0, 255, 0, 0));
+			flipMacro.setMode(MacroObject.MacroObjectMode.Normal);
+
+			byte[] flipData = mMacroCache.getMacroData(flipMacro);
 			for( Sphero mRobot : mRobots ) {
-				//Create a new macro object to send to Sphero
-				MacroObject flipMacro = new MacroObject();
-				flipMacro.addCommand(new RGB(0, 0, 255, 0));
-				// You must turn stabilization off to use the raw motors
-				flipMacro.addCommand(new Stabilization(false,0));
-				// Run both motors forward at full power
-				flipMacro.addCommand(new RawMotor(RawMotor.DriveMode.FORWARD, 255, RawMotor.DriveMode.FORWARD, 255, 0));
-				// Delay for a certain time period
-				flipMacro.addCommand(new Delay(delayValue));
-				// Remember to turn stabilization back on
-				flipMacro.addCommand(new Stabilization(true,0));
-				flipMacro.addCommand(new RGB(0, 255, 0, 0));
-				flipMacro.setMode(MacroObject.MacroObjectMode.Normal);
-				flipMacro.setRobot(mRobot);
-				mRobot.executeMacro(flipMacro);
+				MacroCache.send(flipData, mRobot);
 			}
 		}
 	}
@@ -0,0 +1,266 @@
+package orbotix.sample.teapot;
+
+import orbotix.robot.base.DeviceSensorsAsyncData;
+import orbotix.robot.sensor.AttitudeSensor;
+import orbotix.robot.sensor.DeviceSensorsData;
+import orbotix.robot.sensor.QuaternionSensor;
+import orbotix.sphero.SensorFlag;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Runs a recorded session through {@link OrientationFusion} and reports how far the estimate is from the
+ * robot's own quaternion, and how many updates per second the fusion manages.
+ *
+ * The recording is a file written by StreamingExample's SensorRecorder while the robot streamed
+ * {@link SensorFlag#GYRO_NORMALIZED}, {@link SensorFlag#ACCELEROMETER_NORMALIZED} and
+ * {@link SensorFlag#QUATERNION}, and optionally {@link SensorFlag#ATTITUDE}. Each packet is parsed by the
+ * SDK against its recorded mask, as SensorReplayer does, and every frame is fed to the fusion as fast as
+ * it will go. Only the time spent in {@link OrientationFusion#update(DeviceSensorsData)} counts towards the
+ * throughput.
+ *
+ * The estimate starts at the robot's first quaternion, so the heading is shared. With a reference gain of
+ * 0 the robot's quaternion is only compared against, never fed in, and the error shows the gyro and
+ * accelerometer fusion alone, yaw drift included. The tilt error is the angle between the two gravity
+ * directions, which yaw doesn't affect. If the recording has {@link SensorFlag#ATTITUDE}, the mean
+ * difference between {@link OrientationFusion#getEulerAngles(long, float[], float[])} and the robot's
+ * angles is reported per angle, which shows where the two conventions differ.
+ *
+ * From a desktop JVM with the SDK on the classpath:
+ * {@code java orbotix.sample.teapot.FusionBenchmark <recording> [rate Hz] [reference gain]}
+ */
+public class FusionBenchmark {
+
+    // File layout of SensorRecorder: magic, version, padding and start time, then per packet its arrival
+    // time, mask and length followed by the packet
+    private static final int MAGIC = 0x4F425852;
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 2 + 8;
+    private static final int RECORD_HEADER_SIZE = 8 + 8 + 4;
+
+    /** Two start bytes, id code, two length bytes and a checksum around the frames */
+    private static final int PACKET_OVERHEAD = 6;
+
+    private static final float RAD_TO_DEG = (float) (180.0 / Math.PI);
+
+    /**
+     * The figures of one run. Errors are in degrees.
+     */
+    public static class Result {
+        public long packets;
+        public long frames;
+        /** Frames that carried a robot quaternion, which the errors are averaged over */
+        public long referenceFrames;
+        public double meanError;
+        public double rmsError;
+        public double maxError;
+        public double meanTiltError;
+        public double maxTiltError;
+        /** Frames that carried the robot's angles, which the angle differences are averaged over */
+        public long attitudeFrames;
+        public double meanPitchDifference;
+        public double meanRollDifference;
+        public double meanYawDifference;
+        public double updatesPerSecond;
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(String.format("%d packets, %d frames, %.0f updates/s%n", packets, frames, updatesPerSecond));
+            s.append(String.format("error against the robot quaternion over %d frames: mean %.2f rms %.2f max %.2f deg%n",
+                    referenceFrames, meanError, rmsError, maxError));
+            s.append(String.format("tilt error: mean %.2f max %.2f deg%n", meanTiltError, maxTiltError));
+            if (attitudeFrames > 0) {
+                s.append(String.format("difference to the robot's angles over %d frames: pitch %.2f roll %.2f yaw %.2f deg%n",
+                        attitudeFrames, meanPitchDifference, meanRollDifference, meanYawDifference));
+            }
+            return s.toString();
+        }
+    }
+
+    /**
+     * Runs a recording through a new fusion.
+     *
+     * @param file a file written by SensorRecorder
+     * @param streamingRate the rate the session was streamed at, in Hz
+     * @param referenceGain the fusion's reference gain, 0 to leave the robot quaternion out
+     * @return the figures
+     * @throws IOException if the file can't be read or isn't a recording
+     */
+    public static Result run(File file, int streamingRate, float referenceGain) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    randomAccessFile.length());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a sensor recording");
+            }
+            short version = buffer.getShort();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+            buffer.getShort();
+            buffer.getLong();
+
+            OrientationFusion fusion = new OrientationFusion();
+            fusion.setStreamingRate(streamingRate);
+            return run(buffer, fusion, referenceGain);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static Result run(MappedByteBuffer buffer, OrientationFusion fusion, float referenceGain) {
+        Result result = new Result();
+        float[] estimate = new float[4];
+        float[] angles = new float[3];
+        double errorSum = 0, squaredErrorSum = 0, tiltErrorSum = 0;
+        double pitchSum = 0, rollSum = 0, yawSum = 0;
+        long updateNanos = 0;
+        boolean seeded = false;
+
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            long time = buffer.getLong();
+            long mask = buffer.getLong();
+            int length = buffer.getInt();
+            // A recording that wasn't stopped runs on in zeros to the end of its last segment
+            if (time == 0 || length < PACKET_OVERHEAD || length > buffer.remaining()) {
+                break;
+            }
+            byte[] packet = new byte[length];
+            buffer.get(packet);
+
+            int frameSize = Long.bitCount(mask) * 2;
+            ArrayList<DeviceSensorsData> frames = parse(packet, mask,
+                    (frameSize == 0) ? 1 : Math.max(1, (length - PACKET_OVERHEAD) / frameSize));
+            boolean hasQuaternion = has(mask, SensorFlag.QUATERNION);
+            boolean hasAttitude = has(mask, SensorFlag.ATTITUDE);
+            result.packets++;
+
+            for (DeviceSensorsData data : frames) {
+                QuaternionSensor reference = hasQuaternion ? data.getQuaternion() : null;
+                if (!seeded && reference != null) {
+                    // Start from the robot's orientation, so both share a heading
+                    fusion.setReferenceGain(1);
+                    fusion.update(data);
+                    fusion.setReferenceGain(referenceGain);
+                    seeded = true;
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                fusion.update(data);
+                updateNanos += System.nanoTime() - start;
+                result.frames++;
+
+                long now = fusion.getLastUpdateTime();
+                if (reference != null) {
+                    fusion.getOrientation(now, estimate);
+                    double error = angleBetween(estimate, reference);
+                    double tiltError = tiltBetween(estimate, reference);
+                    errorSum += error;
+                    squaredErrorSum += error * error;
+                    tiltErrorSum += tiltError;
+                    result.maxError = Math.max(result.maxError, error);
+                    result.maxTiltError = Math.max(result.maxTiltError, tiltError);
+                    result.referenceFrames++;
+                }
+                if (hasAttitude) {
+                    AttitudeSensor attitude = data.getAttitudeData();
+                    fusion.getEulerAngles(now, estimate, angles);
+                    pitchSum += Math.abs(wrap(angles[0] - attitude.pitch));
+                    rollSum += Math.abs(wrap(angles[1] - attitude.roll));
+                    yawSum += Math.abs(wrap(angles[2] - attitude.yaw));
+                    result.attitudeFrames++;
+                }
+            }
+        }
+
+        if (result.referenceFrames > 0) {
+            result.meanError = errorSum / result.referenceFrames;
+            result.rmsError = Math.sqrt(squaredErrorSum / result.referenceFrames);
+            result.meanTiltError = tiltErrorSum / result.referenceFrames;
+        }
+        if (result.attitudeFrames > 0) {
+            result.meanPitchDifference = pitchSum / result.attitudeFrames;
+            result.meanRollDifference = rollSum / result.attitudeFrames;
+            result.meanYawDifference = yawSum / result.attitudeFrames;
+        }
+        result.updatesPerSecond = (updateNanos == 0) ? 0 : result.frames * 1e9 / updateNanos;
+        return result;
+    }
+
+    /**
+     * Parses a packet with the SDK. The SDK parses against its process-wide mask, which is set for the
+     * packet and restored afterwards.
+     */
+    private static ArrayList<DeviceSensorsData> parse(byte[] packet, long mask, int frames) {
+        synchronized (DeviceSensorsAsyncData.class) {
+            long sharedMask = DeviceSensorsAsyncData.sMask;
+            int sharedPacketFrames = DeviceSensorsAsyncData.sPacketFrames;
+            DeviceSensorsAsyncData.sMask = mask;
+            DeviceSensorsAsyncData.sPacketFrames = frames;
+            try {
+                return new DeviceSensorsAsyncData(null, packet).getAsyncData();
+            } finally {
+                DeviceSensorsAsyncData.sMask = sharedMask;
+                DeviceSensorsAsyncData.sPacketFrames = sharedPacketFrames;
+            }
+        }
+    }
+
+    private static boolean has(long mask, SensorFlag flag) {
+        return (mask & flag.longValue()) == flag.longValue();
+    }
+
+    /**
+     * Returns the angle of the rotation from one orientation to the other, in degrees.
+     */
+    private static double angleBetween(float[] q, QuaternionSensor r) {
+        double dot = Math.abs(q[0] * r.q0 + q[1] * r.q1 + q[2] * r.q2 + q[3] * r.q3)
+                / Math.sqrt(r.q0 * r.q0 + r.q1 * r.q1 + r.q2 * r.q2 + r.q3 * r.q3);
+        return 2 * Math.acos(Math.min(1, dot)) * RAD_TO_DEG;
+    }
+
+    /**
+     * Returns the angle between the directions gravity has in the two orientations, in degrees.
+     */
+    private static double tiltBetween(float[] q, QuaternionSensor r) {
+        double n = r.q0 * r.q0 + r.q1 * r.q1 + r.q2 * r.q2 + r.q3 * r.q3;
+        double x = 2 * (q[1] * q[3] - q[0] * q[2]);
+        double y = 2 * (q[0] * q[1] + q[2] * q[3]);
+        double z = q[0] * q[0] - q[1] * q[1] - q[2] * q[2] + q[3] * q[3];
+        double rx = 2 * (r.q1 * r.q3 - r.q0 * r.q2) / n;
+        double ry = 2 * (r.q0 * r.q1 + r.q2 * r.q3) / n;
+        double rz = (r.q0 * r.q0 - r.q1 * r.q1 - r.q2 * r.q2 + r.q3 * r.q3) / n;
+        double cos = x * rx + y * ry + z * rz;
+        return Math.acos(Math.max(-1, Math.min(1, cos))) * RAD_TO_DEG;
+    }
+
+    private static double wrap(double degrees) {
+        degrees %= 360;
+        if (degrees > 180) {
+            degrees -= 360;
+        } else if (degrees <= -180) {
+            degrees += 360;
+        }
+        return degrees;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: FusionBenchmark <recording> [rate Hz] [reference gain]");
+            System.exit(2);
+        }
+        int rate = (args.length > 1) ? Integer.parseInt(args[1]) : 60;
+        float referenceGain = (args.length > 2) ? Float.parseFloat(args[2]) : 0;
+        System.out.print(run(new File(args[0]), rate, referenceGain));
+    }
+}
@@ -0,0 +1,344 @@
+package orbotix.sample.teapot;
+
+import orbotix.robot.sensor.Acceleration;
+import orbotix.robot.sensor.DeviceSensorsData;
+import orbotix.robot.sensor.GyroData;
+import orbotix.robot.sensor.QuaternionSensor;
+import orbotix.robot.sensor.ThreeAxisSensor;
+
+/**
+ * Phone-side orientation estimate built from Sphero's streamed gyro, accelerometer and quaternion data.
+ *
+ * Each frame runs one Madgwick step: the gyro rate is integrated over the streaming interval and nudged
+ * towards the orientation in which gravity points along the measured acceleration, which removes pitch and
+ * roll drift. The interval comes from the streaming rate set with {@link #setStreamingRate(int)}, not from
+ * the frames' arrival times, which bunch up when several frames are parsed in the same millisecond. If the robot
+ * also streams its own quaternion, the estimate is pulled towards it by a small complementary gain, which
+ * removes yaw drift the accelerometer can't see.
+ *
+ * Between packets, {@link #getOrientation(long, float[])} interpolates between the last two estimates
+ * and, past the newest one, extrapolates with the last gyro rate for at most {@link #getMaxPrediction()}
+ * milliseconds. A renderer or controller can therefore ask for the orientation at its own rate without
+ * raising the streaming rate. Interpolation only applies to times before the newest frame, so a renderer
+ * should query {@link #getSampleInterval()} in the past to get it.
+ *
+ * Nothing is allocated per update or query. Updates and queries may come from different threads.
+ */
+public class OrientationFusion {
+
+    /** GYRO_NORMALIZED units per degree per second */
+    private static final float GYRO_UNITS_PER_DPS = 10.0f;
+
+    private static final float DEG_TO_RAD = (float) (Math.PI / 180.0);
+    private static final float RAD_TO_DEG = (float) (180.0 / Math.PI);
+
+    /** Sampling rate of the robot's control system, which the streaming rate divides down */
+    private static final int SAMPLE_RATE = 400;
+
+    /** Rate {@link orbotix.sphero.SensorControl} streams at until told otherwise */
+    private static final int DEFAULT_STREAMING_RATE = 50;
+
+    private float mBeta = 0.1f;
+    private float mReferenceGain = 0.02f;
+    private long mMaxPrediction = 100;
+    // Time between two frames, in seconds
+    private float mSampleInterval = streamingInterval(DEFAULT_STREAMING_RATE);
+
+    // Current estimate, w x y z, and the time it applies to
+    private float mQ0 = 1, mQ1 = 0, mQ2 = 0, mQ3 = 0;
+    private long mTime = -1;
+
+    // Previous estimate, for interpolation
+    private float mP0 = 1, mP1 = 0, mP2 = 0, mP3 = 0;
+    private long mPreviousTime = -1;
+
+    // Last gyro rate in rad/s, for extrapolation
+    private float mGx, mGy, mGz;
+
+    private long mUpdateCount = 0;
+
+    /**
+     * Sets the Madgwick gain. Higher values trust the accelerometer more, which corrects drift faster but
+     * lets linear acceleration tilt the estimate.
+     *
+     * @param beta the gain, typically from 0.01 to 0.5
+     */
+    public synchronized void setBeta(float beta) {
+        mBeta = beta;
+    }
+
+    /**
+     * Sets how strongly each robot quaternion pulls the estimate towards it.
+     *
+     * @param gain the blend factor per packet, from 0 (ignore the robot) to 1 (copy the robot)
+     */
+    public synchronized void setReferenceGain(float gain) {
+        mReferenceGain = Math.max(0, Math.min(1, gain));
+    }
+
+    /**
+     * Sets the rate the frames are streamed at, which each step integrates over.
+     *
+     * @param rateHz the rate passed to {@link orbotix.sphero.SensorControl#setRate(int)}
+     */
+    public synchronized void setStreamingRate(int rateHz) {
+        if (rateHz <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        mSampleInterval = streamingInterval(rateHz);
+    }
+
+    /**
+     * Returns the time between two frames the robot actually streams for a requested rate. The robot
+     * divides its sampling rate by a whole number, like SensorControl does.
+     */
+    private static float streamingInterval(int rateHz) {
+        int divisor = Math.max(1, SAMPLE_RATE / Math.min(rateHz, SAMPLE_RATE));
+        return (float) divisor / SAMPLE_RATE;
+    }
+
+    /**
+     * @return the time between two frames, in milliseconds
+     */
+    public synchronized long getSampleInterval() {
+        return Math.round(mSampleInterval * 1000);
+    }
+
+    /**
+     * Sets how far past the newest packet a query may be extrapolated.
+     *
+     * @param millis the horizon in milliseconds
+     */
+    public synchronized void setMaxPrediction(long millis) {
+        mMaxPrediction = millis;
+    }
+
+    public synchronized long getMaxPrediction() {
+        return mMaxPrediction;
+    }
+
+    /**
+     * Forgets the estimate.
+     */
+    public synchronized void reset() {
+        mQ0 = mP0 = 1;
+        mQ1 = mQ2 = mQ3 = mP1 = mP2 = mP3 = 0;
+        mGx = mGy = mGz = 0;
+        mTime = mPreviousTime = -1;
+        mUpdateCount = 0;
+    }
+
+    /**
+     * Feeds one frame of streamed data. Stream {@link orbotix.sphero.SensorFlag#GYRO_NORMALIZED} and
+     * {@link orbotix.sphero.SensorFlag#ACCELEROMETER_NORMALIZED}, and optionally
+     * {@link orbotix.sphero.SensorFlag#QUATERNION}.
+     *
+     * @param data the frame
+     */
+    public void update(DeviceSensorsData data) {
+        // The SDK creates the sensor objects for every frame, but only fills the ones that were streamed
+        GyroData gyro = data.getGyroData();
+        ThreeAxisSensor rate = (gyro != null) ? gyro.getRotationRateFiltered() : null;
+        if (rate == null) {
+            return;
+        }
+        float gx = rate.x / GYRO_UNITS_PER_DPS;
+        float gy = rate.y / GYRO_UNITS_PER_DPS;
+        float gz = rate.z / GYRO_UNITS_PER_DPS;
+
+        float ax = 0, ay = 0, az = 0;
+        Acceleration accel = (data.getAccelerometerData() != null)
+                ? data.getAccelerometerData().getFilteredAcceleration() : null;
+        if (accel != null) {
+            ax = (float) accel.x;
+            ay = (float) accel.y;
+            az = (float) accel.z;
+        }
+
+        synchronized (this) {
+            step(data.getTimeStamp(), gx, gy, gz, ax, ay, az);
+            QuaternionSensor quaternion = data.getQuaternion();
+            if (quaternion != null && (quaternion.q0 != 0 || quaternion.q1 != 0 || quaternion.q2 != 0 || quaternion.q3 != 0)) {
+                blend(quaternion.q0, quaternion.q1, quaternion.q2, quaternion.q3);
+            }
+        }
+    }
+
+    /**
+     * Runs one fusion step, integrating over one streaming interval.
+     *
+     * @param time the time of the sample, in milliseconds, which queries are answered against
+     * @param gx rotation rate about x, in degrees per second
+     * @param gy rotation rate about y, in degrees per second
+     * @param gz rotation rate about z, in degrees per second
+     * @param ax acceleration along x, in g, or 0 for all three to skip the correction
+     * @param ay acceleration along y, in g
+     * @param az acceleration along z, in g
+     */
+    public synchronized void step(long time, float gx, float gy, float gz, float ax, float ay, float az) {
+        gx *= DEG_TO_RAD;
+        gy *= DEG_TO_RAD;
+        gz *= DEG_TO_RAD;
+
+        if (time > mTime) {
+            // Frames parsed together share a time stamp, interpolate from the last estimate before them
+            mP0 = mQ0;
+            mP1 = mQ1;
+            mP2 = mQ2;
+            mP3 = mQ3;
+            mPreviousTime = (mTime < 0) ? time : mTime;
+            mTime = time;
+        }
+        mGx = gx;
+        mGy = gy;
+        mGz = gz;
+        mUpdateCount++;
+
+        float dt = mSampleInterval;
+
+        float q0 = mQ0, q1 = mQ1, q2 = mQ2, q3 = mQ3;
+
+        // Rate of change of the quaternion from the gyro
+        float dq0 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float dq1 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float dq2 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float dq3 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        float norm = ax * ax + ay * ay + az * az;
+        if (norm > 0) {
+            norm = 1.0f / (float) Math.sqrt(norm);
+            ax *= norm;
+            ay *= norm;
+            az *= norm;
+
+            // Gradient descent step towards the orientation that explains the measured gravity
+            float f0 = 2 * (q1 * q3 - q0 * q2) - ax;
+            float f1 = 2 * (q0 * q1 + q2 * q3) - ay;
+            float f2 = 2 * (0.5f - q1 * q1 - q2 * q2) - az;
+            float s0 = -2 * q2 * f0 + 2 * q1 * f1;
+            float s1 = 2 * q3 * f0 + 2 * q0 * f1 - 4 * q1 * f2;
+            float s2 = -2 * q0 * f0 + 2 * q3 * f1 - 4 * q2 * f2;
+            float s3 = 2 * q1 * f0 + 2 * q2 * f1;
+            norm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+            if (norm > 0) {
+                norm = mBeta / (float) Math.sqrt(norm);
+                dq0 -= s0 * norm;
+                dq1 -= s1 * norm;
+                dq2 -= s2 * norm;
+                dq3 -= s3 * norm;
+            }
+        }
+
+        setNormalized(q0 + dq0 * dt, q1 + dq1 * dt, q2 + dq2 * dt, q3 + dq3 * dt);
+    }
+
+    /**
+     * Pulls the current estimate towards an absolute orientation, such as the robot's own quaternion.
+     */
+    private void blend(float r0, float r1, float r2, float r3) {
+        if (mReferenceGain <= 0) {
+            return;
+        }
+        // Take the shorter way round
+        if (r0 * mQ0 + r1 * mQ1 + r2 * mQ2 + r3 * mQ3 < 0) {
+            r0 = -r0;
+            r1 = -r1;
+            r2 = -r2;
+            r3 = -r3;
+        }
+        float k = mReferenceGain;
+        setNormalized(mQ0 + (r0 - mQ0) * k, mQ1 + (r1 - mQ1) * k, mQ2 + (r2 - mQ2) * k, mQ3 + (r3 - mQ3) * k);
+    }
+
+    private void setNormalized(float q0, float q1, float q2, float q3) {
+        float norm = q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3;
+        if (norm <= 0) {
+            return;
+        }
+        norm = 1.0f / (float) Math.sqrt(norm);
+        mQ0 = q0 * norm;
+        mQ1 = q1 * norm;
+        mQ2 = q2 * norm;
+        mQ3 = q3 * norm;
+    }
+
+    /**
+     * Returns the orientation at the given time as a unit quaternion.
+     *
+     * @param time the time, in the same milliseconds as the sensor time stamps
+     * @param out receives w, x, y, z
+     */
+    public synchronized void getOrientation(long time, float[] out) {
+        if (mTime < 0) {
+            out[0] = 1;
+            out[1] = out[2] = out[3] = 0;
+            return;
+        }
+
+        if (time < mTime && mPreviousTime >= 0 && mPreviousTime < mTime) {
+            // Between the last two packets: normalized linear interpolation
+            float t = Math.max(0, (float) (time - mPreviousTime) / (mTime - mPreviousTime));
+            float p0 = mP0, p1 = mP1, p2 = mP2, p3 = mP3;
+            if (p0 * mQ0 + p1 * mQ1 + p2 * mQ2 + p3 * mQ3 < 0) {
+                p0 = -p0;
+                p1 = -p1;
+                p2 = -p2;
+                p3 = -p3;
+            }
+            normalize(p0 + (mQ0 - p0) * t, p1 + (mQ1 - p1) * t, p2 + (mQ2 - p2) * t, p3 + (mQ3 - p3) * t, out);
+            return;
+        }
+
+        // Past the newest packet: carry on rotating at the last gyro rate
+        float dt = Math.min(Math.max(0, time - mTime), mMaxPrediction) / 1000.0f;
+        float h = 0.5f * dt;
+        float q0 = mQ0, q1 = mQ1, q2 = mQ2, q3 = mQ3;
+        normalize(q0 + h * (-q1 * mGx - q2 * mGy - q3 * mGz),
+                q1 + h * (q0 * mGx + q2 * mGz - q3 * mGy),
+                q2 + h * (q0 * mGy - q1 * mGz + q3 * mGx),
+                q3 + h * (q0 * mGz + q1 * mGy - q2 * mGx), out);
+    }
+
+    private static void normalize(float q0, float q1, float q2, float q3, float[] out) {
+        float norm = 1.0f / (float) Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        out[0] = q0 * norm;
+        out[1] = q1 * norm;
+        out[2] = q2 * norm;
+        out[3] = q3 * norm;
+    }
+
+    /**
+     * Returns the orientation at the given time as angles in the order {@link TeapotRenderer} takes them.
+     *
+     * The angles are Z-Y-X Tait-Bryan angles of the estimate, in the robot's gyro axes: yaw about z in
+     * (-180, 180], then pitch about the turned y in [-90, 90], then roll about the turned x in (-180, 180],
+     * all right-handed. They are derived from the quaternion, not the robot's own
+     * {@link orbotix.sphero.SensorFlag#ATTITUDE} angles, which the firmware computes in its own convention
+     * and whole degrees. {@link FusionBenchmark} reports how far the two are apart on a recording that has
+     * both.
+     *
+     * @param time the time, in the same milliseconds as the sensor time stamps
+     * @param quaternion scratch space for four values
+     * @param out receives pitch, roll and yaw, in degrees
+     */
+    public void getEulerAngles(long time, float[] quaternion, float[] out) {
+        getOrientation(time, quaternion);
+        float q0 = quaternion[0], q1 = quaternion[1], q2 = quaternion[2], q3 = quaternion[3];
+
+        float sinPitch = 2 * (q0 * q2 - q3 * q1);
+        out[0] = (float) Math.asin(Math.max(-1, Math.min(1, sinPitch))) * RAD_TO_DEG;
+        out[1] = (float) Math.atan2(2 * (q0 * q1 + q2 * q3), 1 - 2 * (q1 * q1 + q2 * q2)) * RAD_TO_DEG;
+        out[2] = (float) Math.atan2(2 * (q0 * q3 + q1 * q2), 1 - 2 * (q2 * q2 + q3 * q3)) * RAD_TO_DEG;
+    }
+
+    /**
+     * @return the time of the newest packet, or -1 before the first one
+     */
+    public synchronized long getLastUpdateTime() {
+        return mTime;
+    }
+
+    public synchronized long getUpdateCount() {
+        return mUpdateCount;
+    }
+}
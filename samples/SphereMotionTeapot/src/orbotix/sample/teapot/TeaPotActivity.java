@@ -24,14 +24,20 @@ public class TeaPotActivity extends Activity {
     /** Teapot Surface Code */
     private MyGLSurfaceView mGLSurfaceView;
 
+    /** Rate the sensors are streamed at */
+    private static final int STREAMING_RATE = 60;
+
+    /**
+     * Orientation estimate the renderer samples on every frame. The teapot used to be turned by the robot's
+     * ATTITUDE angles. It now gets the fusion's Z-Y-X angles, see
+     * {@link OrientationFusion#getEulerAngles(long, float[], float[])}, in the same pitch, roll, yaw order.
+     */
+    private final OrientationFusion mFusion = new OrientationFusion();
+
     private final SensorListener mDataListener = new SensorListener() {
         @Override
         public void sensorUpdated(DeviceSensorsData ballData) {
-            float[] sensorData = new float[3];
-            sensorData[0] = (float) ballData.getAttitudeData().pitch;
-            sensorData[1] = (float) ballData.getAttitudeData().roll;
-            sensorData[2] = (float) ballData.getAttitudeData().yaw;
-            mGLSurfaceView.onSensorChanged(sensorData);
+            mFusion.update(ballData);
         }
     };
 
@@ -40,7 +46,9 @@ public class TeaPotActivity extends Activity {
         super.onCreate(savedInstanceState);
 
         mGLSurfaceView = new MyGLSurfaceView(this);
-        mGLSurfaceView.setRenderer(new TeapotRenderer());
+        TeapotRenderer renderer = new TeapotRenderer();
+        renderer.setOrientationFusion(mFusion);
+        mGLSurfaceView.setRenderer(renderer);
         setContentView(R.layout.main);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
@@ -67,9 +75,12 @@ public class TeaPotActivity extends Activity {
                 mRobot.setBackLEDBrightness(1.0f);
                 // turn stabilization off
                 mRobot.enableStabilization(false);
-                // register the async data listener
-                mRobot.getSensorControl().setRate(60);
-                mRobot.getSensorControl().addSensorListener(mDataListener, SensorFlag.ATTITUDE);
+                // register the async data listener. The renderer interpolates between packets, so 60Hz is plenty.
+                mFusion.reset();
+                mFusion.setStreamingRate(STREAMING_RATE);
+                mRobot.getSensorControl().setRate(STREAMING_RATE);
+                mRobot.getSensorControl().addSensorListener(mDataListener, SensorFlag.GYRO_NORMALIZED,
+                        SensorFlag.ACCELEROMETER_NORMALIZED, SensorFlag.QUATERNION);
             }
 
             @Override
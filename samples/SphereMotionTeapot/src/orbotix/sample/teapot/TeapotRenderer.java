@@ -1572,9 +1572,28 @@ public class TeapotRenderer implements GLSurfaceView.Renderer {
     }
 
     public void onDrawFrame(GL10 gl) {
+        if (mFusion != null && mFusion.getLastUpdateTime() >= 0) {
+            // Sample the orientation one frame in the past, which lies between the last two packets and is
+            // interpolated, so the teapot moves smoothly
+            long time = System.currentTimeMillis() - mFusion.getSampleInterval();
+            mFusion.getEulerAngles(time, mQuaternion, mAngles);
+            teapot.onSensorValueChanged(mAngles);
+        }
         teapot.draw(gl);
     }
 
+    /**
+     * Makes the renderer read the orientation from a fusion estimate on every frame, instead of waiting
+     * for {@link #onSensorChanged(float[])}. The angles then follow the fusion's Z-Y-X convention, see
+     * {@link OrientationFusion#getEulerAngles(long, float[], float[])}, rather than the robot's ATTITUDE
+     * angles pushed before.
+     *
+     * @param fusion the estimate, or null to go back to pushed values
+     */
+    public void setOrientationFusion(OrientationFusion fusion) {
+        mFusion = fusion;
+    }
+
     public void onSurfaceChanged(GL10 gl, int w, int h) {
         gl.glViewport(0, 0, w, h);
 
@@ -1599,6 +1618,10 @@ public class TeapotRenderer implements GLSurfaceView.Renderer {
     }
 
     private Teapot teapot;
+
+    private volatile OrientationFusion mFusion;
+    private final float[] mQuaternion = new float[4];
+    private final float[] mAngles = new float[3];
 }
 
 class Teapot {
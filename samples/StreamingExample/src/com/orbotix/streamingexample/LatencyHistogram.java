@@ -0,0 +1,121 @@
+package com.orbotix.streamingexample;
+
+/**
+ * Fixed-bucket histogram of millisecond latencies. Samples at or above the last bucket are counted in an
+ * overflow bucket. Recording never allocates.
+ */
+public class LatencyHistogram {
+
+    private final int mBucketWidth;
+    private final long[] mBuckets;
+
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    /**
+     * @param bucketWidth width of each bucket, in milliseconds
+     * @param bucketCount number of buckets, not counting the overflow bucket
+     */
+    public LatencyHistogram(int bucketWidth, int bucketCount) {
+        if (bucketWidth <= 0 || bucketCount <= 0) {
+            throw new IllegalArgumentException("bucketWidth and bucketCount must be positive");
+        }
+        mBucketWidth = bucketWidth;
+        mBuckets = new long[bucketCount + 1];
+    }
+
+    /**
+     * Adds a sample. Negative samples are clamped to 0.
+     *
+     * @param millis the latency in milliseconds
+     */
+    public synchronized void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        int index = (int) Math.min(millis / mBucketWidth, mBuckets.length - 1);
+        mBuckets[index]++;
+
+        mCount++;
+        mSum += millis;
+        if (millis < mMin) mMin = millis;
+        if (millis > mMax) mMax = millis;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized double getMean() {
+        return (mCount == 0) ? 0 : (double) mSum / mCount;
+    }
+
+    public synchronized long getMin() {
+        return (mCount == 0) ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return (mCount == 0) ? 0 : mMax;
+    }
+
+    /**
+     * Returns the upper edge of the bucket holding the given percentile. Samples in the overflow bucket
+     * report the largest sample seen.
+     *
+     * @param percentile a value from 0 to 100
+     * @return the latency in milliseconds, or 0 if nothing has been recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(mCount * Math.max(0, Math.min(100, percentile)) / 100.0);
+        if (target < 1) {
+            target = 1;
+        }
+
+        long seen = 0;
+        for (int i = 0; i < mBuckets.length - 1; i++) {
+            seen += mBuckets[i];
+            if (seen >= target) {
+                return Math.min((long) (i + 1) * mBucketWidth, mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Copies the bucket counts into the given array, the last entry being the overflow bucket.
+     *
+     * @param out an array of at least {@link #getBucketCount()} + 1 entries
+     */
+    public synchronized void getBuckets(long[] out) {
+        System.arraycopy(mBuckets, 0, out, 0, mBuckets.length);
+    }
+
+    public int getBucketCount() {
+        return mBuckets.length - 1;
+    }
+
+    public int getBucketWidth() {
+        return mBucketWidth;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d mean=%.1f p50=%d p95=%d max=%d",
+                mCount, getMean(), getPercentile(50), getPercentile(95), getMax());
+    }
+}
@@ -0,0 +1,255 @@
+package com.orbotix.streamingexample;
+
+import android.os.Handler;
+import orbotix.robot.base.DeviceMessenger;
+import orbotix.robot.base.Robot;
+import orbotix.robot.internal.DeviceResponse;
+import orbotix.robot.internal.PollPacketTimesCommand;
+import orbotix.robot.internal.PollPacketTimesResponse;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Samples the Bluetooth link of one robot in the background by periodically sending a
+ * {@link PollPacketTimesCommand}. Each answer adds to a round trip histogram and a one-way delay
+ * histogram, and updates the jitter and ACK loss figures. Listeners are told after every sample.
+ *
+ * The round trip is {@link PollPacketTimesResponse#getTimeDelay()}, which leaves out the time the robot
+ * spent processing the poll. The one-way delay is half of it.
+ */
+public class LinkHealthMonitor {
+
+    /** Default time between two polls, in milliseconds */
+    public static final long DEFAULT_SAMPLE_INTERVAL = 1000;
+
+    /**
+     * Notified every time the monitor takes a sample or detects a lost poll.
+     */
+    public interface LinkHealthListener {
+        public void onLinkHealthUpdated(LinkHealthMonitor monitor);
+    }
+
+    private final Robot mRobot;
+    private final Handler mHandler = new Handler();
+    private final CopyOnWriteArrayList<LinkHealthListener> mListeners = new CopyOnWriteArrayList<LinkHealthListener>();
+
+    private final LatencyHistogram mRoundTrip = new LatencyHistogram(5, 100);
+    private final LatencyHistogram mOneWayDelay = new LatencyHistogram(5, 100);
+
+    private long mSampleInterval = DEFAULT_SAMPLE_INTERVAL;
+    private boolean mRunning = false;
+
+    // Protected by this
+    private long mSent = 0;
+    private long mReceived = 0;
+    private long mLost = 0;
+    private boolean mAwaitingResponse = false;
+    private long mLastRoundTrip = -1;
+    private double mJitter = 0;
+    private long mLastTimeOffset = 0;
+
+    private final Runnable mPollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+            boolean lost;
+            synchronized (LinkHealthMonitor.this) {
+                // A poll that is still unanswered a full interval later is counted as lost
+                lost = mAwaitingResponse;
+                if (lost) {
+                    mLost++;
+                }
+                mAwaitingResponse = true;
+                mSent++;
+            }
+            if (lost) {
+                notifyListeners();
+            }
+            mRobot.doCommand(new PollPacketTimesCommand());
+            mHandler.postDelayed(this, mSampleInterval);
+        }
+    };
+
+    private final DeviceMessenger.DeviceResponseListener mResponseListener = new DeviceMessenger.DeviceResponseListener() {
+        @Override
+        public void onResponse(DeviceResponse response) {
+            if (response instanceof PollPacketTimesResponse) {
+                onPollResponse((PollPacketTimesResponse) response);
+            }
+        }
+    };
+
+    public LinkHealthMonitor(Robot robot) {
+        mRobot = robot;
+    }
+
+    /**
+     * Sets the time between two polls. Takes effect after the next poll.
+     *
+     * @param interval the interval in milliseconds
+     */
+    public void setSampleInterval(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        mSampleInterval = interval;
+    }
+
+    public long getSampleInterval() {
+        return mSampleInterval;
+    }
+
+    /**
+     * Starts polling the robot. Must be called from a thread with a Looper.
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        DeviceMessenger.getInstance().addResponseListener(mRobot, mResponseListener);
+        mHandler.post(mPollRunnable);
+    }
+
+    /**
+     * Stops polling. The collected figures are kept until {@link #reset()}.
+     */
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mHandler.removeCallbacks(mPollRunnable);
+        DeviceMessenger.getInstance().removeResponseListener(mRobot, mResponseListener);
+        synchronized (this) {
+            mAwaitingResponse = false;
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Clears the histograms and counters.
+     */
+    public synchronized void reset() {
+        mRoundTrip.reset();
+        mOneWayDelay.reset();
+        mSent = 0;
+        mReceived = 0;
+        mLost = 0;
+        mAwaitingResponse = false;
+        mLastRoundTrip = -1;
+        mJitter = 0;
+        mLastTimeOffset = 0;
+    }
+
+    public void addLinkHealthListener(LinkHealthListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeLinkHealthListener(LinkHealthListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void onPollResponse(PollPacketTimesResponse response) {
+        synchronized (this) {
+            if (!mAwaitingResponse) {
+                // Late answer to a poll already counted as lost
+                return;
+            }
+            mAwaitingResponse = false;
+
+            if (response.getResponseCode() != DeviceResponse.ResponseCode.OK) {
+                mLost++;
+            } else {
+                mReceived++;
+
+                long roundTrip = response.getTimeDelay();
+                mRoundTrip.record(roundTrip);
+                mOneWayDelay.record(roundTrip / 2);
+                mLastTimeOffset = response.getTimeOffset();
+
+                // Smoothed inter-sample variation, as in RFC 3550
+                if (mLastRoundTrip >= 0) {
+                    mJitter += (Math.abs(roundTrip - mLastRoundTrip) - mJitter) / 16.0;
+                }
+                mLastRoundTrip = roundTrip;
+            }
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        for (LinkHealthListener listener : mListeners) {
+            listener.onLinkHealthUpdated(this);
+        }
+    }
+
+    public Robot getRobot() {
+        return mRobot;
+    }
+
+    /**
+     * @return histogram of round trip times, in milliseconds
+     */
+    public LatencyHistogram getRoundTripHistogram() {
+        return mRoundTrip;
+    }
+
+    /**
+     * @return histogram of estimated one-way delays, in milliseconds
+     */
+    public LatencyHistogram getOneWayDelayHistogram() {
+        return mOneWayDelay;
+    }
+
+    /**
+     * @return the smoothed round trip jitter, in milliseconds
+     */
+    public synchronized double getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * @return the most recent round trip time in milliseconds, or -1 if none has been measured
+     */
+    public synchronized long getLastRoundTrip() {
+        return mLastRoundTrip;
+    }
+
+    /**
+     * @return the most recent clock offset between the phone and the robot, in milliseconds
+     */
+    public synchronized long getLastTimeOffset() {
+        return mLastTimeOffset;
+    }
+
+    public synchronized long getSentCount() {
+        return mSent;
+    }
+
+    public synchronized long getReceivedCount() {
+        return mReceived;
+    }
+
+    public synchronized long getLostCount() {
+        return mLost;
+    }
+
+    /**
+     * @return the fraction of polls that got no usable answer, from 0 to 1
+     */
+    public synchronized float getLossRate() {
+        long settled = mReceived + mLost;
+        return (settled == 0) ? 0 : (float) mLost / settled;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("rtt[%s] jitter=%.1fms loss=%.1f%%", mRoundTrip, mJitter, getLossRate() * 100);
+    }
+}
@@ -0,0 +1,152 @@
+package com.orbotix.streamingexample;
+
+import android.os.Handler;
+import android.os.Process;
+import orbotix.robot.base.CollisionDetectedAsyncData;
+import orbotix.robot.sensor.DeviceSensorsData;
+import orbotix.robot.sensor.LocatorData;
+import orbotix.sphero.CollisionListener;
+import orbotix.sphero.LocatorListener;
+import orbotix.sphero.SensorListener;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executors and listener wrappers for moving work out of the thread the SDK delivers on. The SDK calls
+ * {@link SensorListener}s, {@link LocatorListener}s and {@link CollisionListener}s one after another on
+ * the handler set with {@link orbotix.robot.base.DeviceMessenger#setMessageHandler(Handler)}, so one slow
+ * listener delays every other listener and the parsing of the next packets.
+ *
+ * Register a wrapped listener with {@link orbotix.sphero.SensorControl} or
+ * {@link orbotix.sphero.CollisionControl} instead of the listener itself. The wrapper only queues the event
+ * in a {@link ListenerMailbox} and returns; the listener runs on the executor given here. Keep the wrapper
+ * to unregister it later.
+ */
+public final class ListenerExecutors {
+
+    /** Runs the listener on the thread that delivered the event, the SDK's own behavior */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private ListenerExecutors() {
+    }
+
+    /**
+     * @param handler the handler to post to, for instance one on the main looper for view updates
+     * @return an executor that runs work on the handler's thread
+     */
+    public static Executor forHandler(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * Creates an executor backed by a single dedicated thread. Shut it down when the listener is removed.
+     *
+     * @param name the thread name
+     * @param priority the Linux thread priority, such as {@link Process#THREAD_PRIORITY_URGENT_DISPLAY}
+     * @return the executor
+     */
+    public static ExecutorService newDedicatedThread(final String name, final int priority) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(priority);
+                        runnable.run();
+                    }
+                }, name);
+            }
+        });
+    }
+
+    /**
+     * Wraps a sensor listener so it runs on the given executor.
+     *
+     * @param listener the listener
+     * @param executor the executor the listener runs on
+     * @param capacity the most frames queued for the listener
+     * @param policy what to do with frames that arrive while the queue is full
+     * @return the listener to register with {@link orbotix.sphero.SensorControl}
+     */
+    public static SensorListener sensorListener(final SensorListener listener, Executor executor, int capacity,
+                                                ListenerMailbox.Policy policy) {
+        final ListenerMailbox<DeviceSensorsData> mailbox = new ListenerMailbox<DeviceSensorsData>(executor, capacity, policy) {
+            @Override
+            protected void deliver(DeviceSensorsData event) {
+                listener.sensorUpdated(event);
+            }
+        };
+        return new SensorListener() {
+            @Override
+            public void sensorUpdated(DeviceSensorsData data) {
+                mailbox.post(data);
+            }
+        };
+    }
+
+    /**
+     * Wraps a locator listener so it runs on the given executor.
+     *
+     * @param listener the listener
+     * @param executor the executor the listener runs on
+     * @param capacity the most updates queued for the listener
+     * @param policy what to do with updates that arrive while the queue is full
+     * @return the listener to register with {@link orbotix.sphero.SensorControl}
+     */
+    public static LocatorListener locatorListener(final LocatorListener listener, Executor executor, int capacity,
+                                                  ListenerMailbox.Policy policy) {
+        final ListenerMailbox<LocatorData> mailbox = new ListenerMailbox<LocatorData>(executor, capacity, policy) {
+            @Override
+            protected void deliver(LocatorData event) {
+                listener.onLocatorChanged(event);
+            }
+        };
+        return new LocatorListener() {
+            @Override
+            public void onLocatorChanged(LocatorData data) {
+                mailbox.post(data);
+            }
+        };
+    }
+
+    /**
+     * Wraps a collision listener so it runs on the given executor. Collisions are rare and each one
+     * matters, so {@link ListenerMailbox.Policy#DROP_NEWEST} with some room is usually the right choice.
+     *
+     * @param listener the listener
+     * @param executor the executor the listener runs on
+     * @param capacity the most collisions queued for the listener
+     * @param policy what to do with collisions that arrive while the queue is full
+     * @return the listener to register with {@link orbotix.sphero.CollisionControl}
+     */
+    public static CollisionListener collisionListener(final CollisionListener listener, Executor executor, int capacity,
+                                                      ListenerMailbox.Policy policy) {
+        final ListenerMailbox<CollisionDetectedAsyncData> mailbox =
+                new ListenerMailbox<CollisionDetectedAsyncData>(executor, capacity, policy) {
+            @Override
+            protected void deliver(CollisionDetectedAsyncData event) {
+                listener.collisionDetected(event);
+            }
+        };
+        return new CollisionListener() {
+            @Override
+            public void collisionDetected(CollisionDetectedAsyncData data) {
+                mailbox.post(data);
+            }
+        };
+    }
+}
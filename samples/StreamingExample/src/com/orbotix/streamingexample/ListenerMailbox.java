@@ -0,0 +1,159 @@
+package com.orbotix.streamingexample;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Bounded queue of events for one listener, drained on an {@link Executor} of the listener's choosing.
+ * Posting never blocks and never runs the listener on the posting thread unless the executor does so, so
+ * a slow listener only ever holds up itself.
+ *
+ * When the mailbox is full the {@link Policy} decides what gives. Subclasses implement {@link #deliver}
+ * to hand an event to the listener; see {@link ListenerExecutors} for ready-made SDK listener wrappers.
+ *
+ * @param <T> the event type
+ */
+public abstract class ListenerMailbox<T> {
+
+    /**
+     * What to do with an event posted to a full mailbox.
+     */
+    public enum Policy {
+        /** Discard the new event */
+        DROP_NEWEST,
+        /** Discard the oldest queued event to make room */
+        DROP_OLDEST,
+        /** Keep only the most recent event, whatever the capacity */
+        CONFLATE
+    }
+
+    private final Executor mExecutor;
+    private final Policy mPolicy;
+    private final Object[] mEvents;
+
+    // Protected by this
+    private int mHead = 0;
+    private int mSize = 0;
+    private boolean mScheduled = false;
+    private long mPosted = 0;
+    private long mDelivered = 0;
+    private long mDropped = 0;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param executor the executor the listener runs on
+     * @param capacity the most events held at once. Ignored for {@link Policy#CONFLATE}.
+     * @param policy what to do when the mailbox is full
+     */
+    public ListenerMailbox(Executor executor, int capacity, Policy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mExecutor = executor;
+        mPolicy = policy;
+        mEvents = new Object[(policy == Policy.CONFLATE) ? 1 : capacity];
+    }
+
+    /**
+     * Hands an event to the listener.
+     *
+     * @param event the event
+     */
+    protected abstract void deliver(T event);
+
+    /**
+     * Queues an event and makes sure the mailbox is being drained.
+     *
+     * @param event the event
+     * @throws RejectedExecutionException if the executor refused to drain the mailbox, for instance
+     *         because it was shut down. The event stays queued for the next post to retry.
+     */
+    public void post(T event) {
+        synchronized (this) {
+            mPosted++;
+            if (mSize == mEvents.length) {
+                if (mPolicy == Policy.DROP_NEWEST) {
+                    mDropped++;
+                    return;
+                }
+                // DROP_OLDEST and CONFLATE both replace the oldest event
+                mEvents[mHead] = null;
+                mHead = (mHead + 1) % mEvents.length;
+                mSize--;
+                mDropped++;
+            }
+            mEvents[(mHead + mSize) % mEvents.length] = event;
+            mSize++;
+
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        try {
+            mExecutor.execute(mDrainRunnable);
+        } catch (RejectedExecutionException e) {
+            // Nothing is draining, so the next post has to schedule again
+            synchronized (this) {
+                mScheduled = false;
+            }
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        while (true) {
+            T event;
+            synchronized (this) {
+                if (mSize == 0) {
+                    mScheduled = false;
+                    return;
+                }
+                event = (T) mEvents[mHead];
+                mEvents[mHead] = null;
+                mHead = (mHead + 1) % mEvents.length;
+                mSize--;
+                mDelivered++;
+            }
+            deliver(event);
+        }
+    }
+
+    /**
+     * Discards every queued event.
+     */
+    public synchronized void clear() {
+        while (mSize > 0) {
+            mEvents[mHead] = null;
+            mHead = (mHead + 1) % mEvents.length;
+            mSize--;
+        }
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    public synchronized int getQueuedCount() {
+        return mSize;
+    }
+
+    public synchronized long getPostedCount() {
+        return mPosted;
+    }
+
+    public synchronized long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+}
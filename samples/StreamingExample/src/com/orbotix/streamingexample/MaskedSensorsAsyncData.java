@@ -0,0 +1,31 @@
+package com.orbotix.streamingexample;
+
+import orbotix.robot.base.DeviceSensorsAsyncData;
+import orbotix.robot.base.Robot;
+
+/**
+ * A sensor packet that carries the streaming mask it was parsed with. The SDK only knows its process-wide
+ * mask, which may have changed by the time the packet reaches the main thread, so
+ * {@link SensorFrameStream} decodes these with their own mask instead. {@link SensorReplayer} posts them.
+ */
+public class MaskedSensorsAsyncData extends DeviceSensorsAsyncData {
+
+    private final long mMask;
+
+    /**
+     * Parses the packet. {@link DeviceSensorsAsyncData#sMask} and {@link DeviceSensorsAsyncData#sPacketFrames}
+     * have to describe it while this runs.
+     *
+     * @param robot the robot the packet is for
+     * @param packet the packet, framing included
+     * @param mask the mask the packet was requested with
+     */
+    public MaskedSensorsAsyncData(Robot robot, byte[] packet, long mask) {
+        super(robot, packet);
+        mMask = mask;
+    }
+
+    public long getMask() {
+        return mMask;
+    }
+}
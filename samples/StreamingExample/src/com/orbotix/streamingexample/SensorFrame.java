@@ -0,0 +1,247 @@
+package com.orbotix.streamingexample;
+
+import orbotix.sphero.SensorFlag;
+
+/**
+ * Reusable, primitive-backed view of one frame of streamed sensor data. The frame does not copy or
+ * convert anything up front: it points into the raw bytes of a
+ * {@link orbotix.robot.base.DeviceSensorsAsyncData} packet and reads values on demand, so moving it
+ * from one frame to the next allocates nothing.
+ *
+ * Values are addressed by {@link SensorFlag} and axis. Axis order follows the firmware: x, y, z for
+ * three axis sensors, pitch, roll, yaw for {@link SensorFlag#ATTITUDE}, right, left for back EMF,
+ * q0 to q3 for {@link SensorFlag#QUATERNION} and x, y for {@link SensorFlag#LOCATOR} and
+ * {@link SensorFlag#VELOCITY}.
+ *
+ * A frame is only valid until the callback it was handed to returns.
+ */
+public class SensorFrame {
+
+    /** Firmware bit for MOTOR_BACKEMF_RAW, whose SensorFlag value aliases the normalized one */
+    private static final long MOTOR_BACKEMF_RAW_BITS = 0x00600000L;
+
+    private static final SensorFlag[] FLAGS = SensorFlag.values();
+
+    private long mMask = 0;
+    private long mVisibleMask = -1L;
+    private int mFrameSize = 0;
+    private final int[] mOffsets = new int[FLAGS.length];
+
+    private byte[] mData;
+    private int mBase;
+    private int mFrameIndex;
+    private long mTimeStamp;
+    private boolean mInterpolated = false;
+
+    /**
+     * Returns the stream bits a flag occupies. Use this rather than {@link SensorFlag#longValue()}.
+     *
+     * @param flag the sensor flag
+     * @return the bits of the 64 bit streaming mask for the flag
+     */
+    public static long getMaskBits(SensorFlag flag) {
+        if (flag == SensorFlag.MOTOR_BACKEMF_RAW) {
+            return MOTOR_BACKEMF_RAW_BITS;
+        }
+        return flag.longValue();
+    }
+
+    /**
+     * @param flag the sensor flag
+     * @return the number of values the flag contributes to each frame
+     */
+    public static int getAxisCount(SensorFlag flag) {
+        return Long.bitCount(getMaskBits(flag));
+    }
+
+    /**
+     * Returns the position of a mask bit in the firmware's output order, which runs from bit 31 down to
+     * bit 0 and then from bit 63 down to bit 32.
+     */
+    private static int streamOrder(int bit) {
+        return (bit < 32) ? (31 - bit) : (32 + 63 - bit);
+    }
+
+    /**
+     * Returns the number of bytes each frame takes for the given mask.
+     *
+     * @param mask the streaming mask
+     * @return the frame size in bytes
+     */
+    public static int getFrameSize(long mask) {
+        return Long.bitCount(mask) * 2;
+    }
+
+    /**
+     * Sets the streaming mask the frame decodes against. Cheap when the mask hasn't changed.
+     *
+     * @param mask the streaming mask the packets were requested with
+     */
+    public void setMask(long mask) {
+        if (mask == mMask && mFrameSize != 0) {
+            return;
+        }
+        mMask = mask;
+        mFrameSize = getFrameSize(mask);
+
+        for (int i = 0; i < FLAGS.length; i++) {
+            long bits = getMaskBits(FLAGS[i]);
+            if ((mask & bits) != bits) {
+                mOffsets[i] = -1;
+                continue;
+            }
+            // The flag's first value is its highest bit, and sits after every set bit the firmware sends before it
+            int first = streamOrder(63 - Long.numberOfLeadingZeros(bits));
+            int index = 0;
+            long remaining = mask;
+            while (remaining != 0) {
+                int bit = Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                if (streamOrder(bit) < first) {
+                    index++;
+                }
+            }
+            mOffsets[i] = index * 2;
+        }
+    }
+
+    /**
+     * Limits the sensors this frame exposes, so one packet can be handed out with a different selection
+     * to each consumer. Hidden sensors read as absent.
+     *
+     * @param mask the bits to expose, -1 for everything in the streaming mask
+     */
+    public void setVisibleMask(long mask) {
+        mVisibleMask = mask;
+    }
+
+    public long getVisibleMask() {
+        return mVisibleMask;
+    }
+
+    /**
+     * Points the frame at one frame of a raw packet.
+     *
+     * @param data the raw data of a sensor packet
+     * @param frameIndex the index of the frame within the packet
+     * @param timeStamp the time, in phone milliseconds, the frame is attributed to
+     */
+    public void wrap(byte[] data, int frameIndex, long timeStamp) {
+        mData = data;
+        mFrameIndex = frameIndex;
+        mBase = frameIndex * mFrameSize;
+        mTimeStamp = timeStamp;
+    }
+
+    /**
+     * @param data the raw data of a sensor packet
+     * @return the number of whole frames in the packet for the current mask
+     */
+    public int getFrameCount(byte[] data) {
+        return (mFrameSize == 0) ? 0 : data.length / mFrameSize;
+    }
+
+    public long getMask() {
+        return mMask;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * @return the raw packet data the frame currently points into
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getFrameIndex() {
+        return mFrameIndex;
+    }
+
+    public long getTimeStamp() {
+        return mTimeStamp;
+    }
+
+    /**
+     * Marks the frame as made up from its neighbors rather than sent by the robot.
+     *
+     * @param interpolated True, for a synthesized frame
+     */
+    public void setInterpolated(boolean interpolated) {
+        mInterpolated = interpolated;
+    }
+
+    /**
+     * @return True, if the frame was synthesized to fill a gap in the stream
+     */
+    public boolean isInterpolated() {
+        return mInterpolated;
+    }
+
+    /**
+     * @param flag the sensor flag
+     * @return True, if the frame carries every value of the flag
+     */
+    public boolean has(SensorFlag flag) {
+        long bits = getMaskBits(flag);
+        return mOffsets[flag.ordinal()] >= 0 && (mVisibleMask & bits) == bits;
+    }
+
+    /**
+     * Returns where a flag's values sit within a frame, for code that works on the raw bytes.
+     *
+     * @param flag the sensor flag
+     * @return the byte offset of the flag's first value from the start of the frame, or -1 if the flag
+     *         isn't in the streaming mask
+     */
+    public int getOffset(SensorFlag flag) {
+        return mOffsets[flag.ordinal()];
+    }
+
+    /**
+     * Returns a value as the signed 16 bit integer the robot sent.
+     *
+     * @param flag the sensor flag
+     * @param axis the axis within the flag, starting at 0
+     * @return the raw value, or 0 if the flag isn't in the frame
+     */
+    public int getInt(SensorFlag flag, int axis) {
+        if (!has(flag)) {
+            return 0;
+        }
+        int offset = mOffsets[flag.ordinal()];
+        int i = mBase + offset + axis * 2;
+        return (short) ((mData[i] << 8) | (mData[i + 1] & 0xff));
+    }
+
+    /**
+     * Returns a value in the units the SDK's sensor classes use: g for
+     * {@link SensorFlag#ACCELEROMETER_NORMALIZED}, unit quaternion components for
+     * {@link SensorFlag#QUATERNION}, and the raw value for everything else.
+     *
+     * @param flag the sensor flag
+     * @param axis the axis within the flag, starting at 0
+     * @return the scaled value, or 0 if the flag isn't in the frame
+     */
+    public float getFloat(SensorFlag flag, int axis) {
+        return scale(flag, getInt(flag, axis));
+    }
+
+    /**
+     * Converts a raw value to the units {@link #getFloat(SensorFlag, int)} returns.
+     *
+     * @param flag the sensor flag the value belongs to
+     * @param value the raw value
+     * @return the scaled value
+     */
+    public static float scale(SensorFlag flag, int value) {
+        if (flag == SensorFlag.ACCELEROMETER_NORMALIZED) {
+            return value / 4096.0f;
+        } else if (flag == SensorFlag.QUATERNION) {
+            return value / 10000.0f;
+        }
+        return value;
+    }
+}
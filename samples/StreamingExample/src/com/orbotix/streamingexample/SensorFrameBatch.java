@@ -0,0 +1,77 @@
+package com.orbotix.streamingexample;
+
+/**
+ * Reusable view of all the frames of one sensor packet. When the robot is asked for several frames per
+ * packet, a {@link SensorFrameStream.SensorBatchListener} gets the whole block in one call instead of
+ * one call per frame.
+ *
+ * {@link #getFrame(int)} repositions a single shared {@link SensorFrame}, so a frame returned by it is
+ * only valid until the next call. The batch itself is only valid until the callback returns.
+ */
+public class SensorFrameBatch {
+
+    private final SensorFrame mFrame = new SensorFrame();
+
+    private byte[] mData;
+    private int mFrameCount;
+    private long mTimeStamp;
+    private float mFrameInterval;
+
+    void wrap(long mask, byte[] data, int frameCount, long timeStamp, float frameInterval) {
+        mFrame.setMask(mask);
+        mData = data;
+        mFrameCount = frameCount;
+        mTimeStamp = timeStamp;
+        mFrameInterval = frameInterval;
+    }
+
+    /**
+     * @return the number of frames in the packet
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Points the shared frame at the frame with the given index.
+     *
+     * @param index the frame index, from 0 to {@link #getFrameCount()} - 1
+     * @return the shared frame
+     */
+    public SensorFrame getFrame(int index) {
+        if (index < 0 || index >= mFrameCount) {
+            throw new IndexOutOfBoundsException("frame " + index + " of " + mFrameCount);
+        }
+        mFrame.wrap(mData, index, getTimeStamp(index));
+        return mFrame;
+    }
+
+    /**
+     * Returns the time the given frame was sampled. The last frame is attributed to the packet's arrival
+     * and earlier frames are spaced back from it by the streaming interval.
+     *
+     * @param index the frame index
+     * @return the time, in phone milliseconds
+     */
+    public long getTimeStamp(int index) {
+        return mTimeStamp - (long) ((mFrameCount - 1 - index) * mFrameInterval);
+    }
+
+    /**
+     * @return the time the packet arrived, in phone milliseconds
+     */
+    public long getTimeStamp() {
+        return mTimeStamp;
+    }
+
+    public long getMask() {
+        return mFrame.getMask();
+    }
+
+    /**
+     * @return the raw packet data
+     */
+    public byte[] getData() {
+        return mData;
+    }
+}
@@ -0,0 +1,210 @@
+package com.orbotix.streamingexample;
+
+import orbotix.robot.base.DeviceAsyncData;
+import orbotix.robot.base.DeviceMessenger;
+import orbotix.robot.base.DeviceSensorsAsyncData;
+import orbotix.robot.base.Robot;
+
+/**
+ * Delivers a robot's streamed sensor data as {@link SensorFrame}s instead of
+ * {@link orbotix.robot.sensor.DeviceSensorsData} objects. One frame instance is reused for every frame of
+ * every packet, and values are read straight out of {@link DeviceSensorsAsyncData#getRawData()}, so
+ * steady-state delivery allocates nothing on the listener side.
+ *
+ * Streaming has to be requested separately, through {@link orbotix.sphero.SensorControl} or
+ * {@link SensorStreaming}; this class only changes how the packets are handed to the app. Unless a mask is
+ * set with {@link #setMask(long)}, packets are decoded against the SDK's process-wide streaming mask.
+ * A {@link MaskedSensorsAsyncData}, such as a replayed packet, is always decoded with its own mask.
+ *
+ * Frames are stamped with the time the SDK built the packet on its reader thread, not the time it reached
+ * the listeners, so a busy main thread doesn't show up as a late stream.
+ */
+public class SensorFrameStream {
+
+    /**
+     * Receives sensor frames. The frame is reused, so copy out anything needed after the call returns.
+     */
+    public interface SensorFrameListener {
+        public void onSensorFrame(SensorFrame frame);
+    }
+
+    /**
+     * Receives every frame of a packet in one call. The batch is reused, so copy out anything needed
+     * after the call returns.
+     */
+    public interface SensorBatchListener {
+        public void onSensorBatch(SensorFrameBatch batch);
+    }
+
+    private final Robot mRobot;
+    private final SensorFrame mFrame = new SensorFrame();
+    private final SensorFrameBatch mBatch = new SensorFrameBatch();
+    // Copied on write so delivery iterates without locking or allocating
+    private volatile SensorFrameListener[] mListeners = new SensorFrameListener[0];
+    private volatile SensorBatchListener[] mBatchListeners = new SensorBatchListener[0];
+
+    // 0 means the SDK's shared mask
+    private volatile long mMask = 0;
+    private volatile float mFrameInterval = 0;
+
+    private final DeviceMessenger.AsyncDataListener mAsyncDataListener = new DeviceMessenger.AsyncDataListener() {
+        @Override
+        public void onDataReceived(DeviceAsyncData data) {
+            if (data instanceof DeviceSensorsAsyncData) {
+                long mask = (data instanceof MaskedSensorsAsyncData)
+                        ? ((MaskedSensorsAsyncData) data).getMask() : mMask;
+                onSensorPacket(((DeviceSensorsAsyncData) data).getRawData(),
+                        (mask != 0) ? mask : DeviceSensorsAsyncData.sMask, data.getTimeStamp().getTime());
+            }
+        }
+    };
+
+    public SensorFrameStream(Robot robot) {
+        mRobot = robot;
+    }
+
+    public Robot getRobot() {
+        return mRobot;
+    }
+
+    /**
+     * Sets the streaming mask this robot's packets were requested with.
+     *
+     * @param mask the robot's streaming mask, or 0 to use the SDK's shared mask
+     */
+    public void setMask(long mask) {
+        mMask = mask;
+    }
+
+    public long getMask() {
+        return mMask;
+    }
+
+    /**
+     * Sets the time between two frames, used to spread the time stamps of the frames in a packet.
+     *
+     * @param millis the streaming interval in milliseconds, or 0 to stamp every frame with the packet's
+     *               arrival time
+     */
+    public void setFrameInterval(float millis) {
+        mFrameInterval = millis;
+    }
+
+    public float getFrameInterval() {
+        return mFrameInterval;
+    }
+
+    private boolean hasListeners() {
+        return mListeners.length > 0 || mBatchListeners.length > 0;
+    }
+
+    public synchronized void addSensorFrameListener(SensorFrameListener listener) {
+        SensorFrameListener[] old = mListeners;
+        for (SensorFrameListener l : old) {
+            if (l == listener) {
+                return;
+            }
+        }
+        boolean subscribe = !hasListeners();
+        SensorFrameListener[] listeners = new SensorFrameListener[old.length + 1];
+        System.arraycopy(old, 0, listeners, 0, old.length);
+        listeners[old.length] = listener;
+        mListeners = listeners;
+
+        if (subscribe) {
+            DeviceMessenger.getInstance().addAsyncDataListener(mRobot, mAsyncDataListener);
+        }
+    }
+
+    public synchronized void removeSensorFrameListener(SensorFrameListener listener) {
+        SensorFrameListener[] old = mListeners;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == listener) {
+                SensorFrameListener[] listeners = new SensorFrameListener[old.length - 1];
+                System.arraycopy(old, 0, listeners, 0, i);
+                System.arraycopy(old, i + 1, listeners, i, old.length - i - 1);
+                mListeners = listeners;
+
+                if (!hasListeners()) {
+                    DeviceMessenger.getInstance().removeAsyncDataListener(mRobot, mAsyncDataListener);
+                }
+                return;
+            }
+        }
+    }
+
+    public synchronized void addSensorBatchListener(SensorBatchListener listener) {
+        SensorBatchListener[] old = mBatchListeners;
+        for (SensorBatchListener l : old) {
+            if (l == listener) {
+                return;
+            }
+        }
+        boolean subscribe = !hasListeners();
+        SensorBatchListener[] listeners = new SensorBatchListener[old.length + 1];
+        System.arraycopy(old, 0, listeners, 0, old.length);
+        listeners[old.length] = listener;
+        mBatchListeners = listeners;
+
+        if (subscribe) {
+            DeviceMessenger.getInstance().addAsyncDataListener(mRobot, mAsyncDataListener);
+        }
+    }
+
+    public synchronized void removeSensorBatchListener(SensorBatchListener listener) {
+        SensorBatchListener[] old = mBatchListeners;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == listener) {
+                SensorBatchListener[] listeners = new SensorBatchListener[old.length - 1];
+                System.arraycopy(old, 0, listeners, 0, i);
+                System.arraycopy(old, i + 1, listeners, i, old.length - i - 1);
+                mBatchListeners = listeners;
+
+                if (!hasListeners()) {
+                    DeviceMessenger.getInstance().removeAsyncDataListener(mRobot, mAsyncDataListener);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decodes a raw sensor packet, hands it to the batch listeners and then each of its frames to the
+     * frame listeners.
+     *
+     * @param rawData the packet data, as returned by {@link DeviceSensorsAsyncData#getRawData()}
+     * @param mask the streaming mask the packet was requested with
+     * @param time the time the packet was received, in phone milliseconds
+     */
+    protected void onSensorPacket(byte[] rawData, long mask, long time) {
+        if (rawData == null || mask == 0) {
+            return;
+        }
+
+        SensorFrameListener[] listeners = mListeners;
+        SensorBatchListener[] batchListeners = mBatchListeners;
+        float interval = mFrameInterval;
+        synchronized (mFrame) {
+            mFrame.setMask(mask);
+            if (rawData.length % mFrame.getFrameSize() != 0) {
+                // Requested with a different mask, most likely just before a reconfiguration
+                return;
+            }
+            int frames = mFrame.getFrameCount(rawData);
+
+            if (batchListeners.length > 0) {
+                mBatch.wrap(mask, rawData, frames, time, interval);
+                for (int l = 0; l < batchListeners.length; l++) {
+                    batchListeners[l].onSensorBatch(mBatch);
+                }
+            }
+
+            for (int i = 0; i < frames; i++) {
+                mFrame.wrap(rawData, i, time - (long) ((frames - 1 - i) * interval));
+                for (int l = 0; l < listeners.length; l++) {
+                    listeners[l].onSensorFrame(mFrame);
+                }
+            }
+        }
+    }
+}
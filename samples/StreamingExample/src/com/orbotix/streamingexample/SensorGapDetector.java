@@ -0,0 +1,282 @@
+package com.orbotix.streamingexample;
+
+import orbotix.sphero.SensorFlag;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Checks a robot's frame stream for continuity and passes it on to another listener. Packets carry no
+ * sequence numbers, so holes are found by timing: a frame that arrives well over one streaming interval
+ * after the previous one opens a gap.
+ *
+ * A gap can mean lost frames or frames held up on the link that then arrive in a burst. To tell them apart
+ * the frame after a gap is held back until the next one arrives. If that one comes early, the stream is
+ * catching up and the held frame is reported late. Otherwise the gap is reported with the number of frames
+ * and the time that went missing, and, if enabled, interpolated frames marked with
+ * {@link SensorFrame#isInterpolated()} are delivered in their place. Attitude roll and yaw are interpolated
+ * the short way round, across the jump from 180 to -180 degrees rather than through 0.
+ *
+ * A held frame that no next frame follows, because the stream stopped or changed its mask, is reported
+ * as coming after a gap. Call {@link #flush()} when the stream stops to get it.
+ *
+ * Frame times are phone times. They are spaced by the streaming interval within a packet, see
+ * {@link SensorFrameStream#setFrameInterval(float)}.
+ */
+public class SensorGapDetector implements SensorFrameStream.SensorFrameListener {
+
+    /** Largest frame, with every sensor streamed */
+    private static final int MAX_FRAME_SIZE = 64 * 2;
+
+    /**
+     * Notified of gaps and late frames on the thread frames are delivered on.
+     */
+    public interface GapListener {
+        /**
+         * @param missingFrames the number of frames that never arrived
+         * @param missingTime the time the hole spans, in milliseconds
+         */
+        public void onGap(SensorGapDetector detector, int missingFrames, long missingTime);
+
+        /**
+         * @param lateness how much later than scheduled the frame arrived, in milliseconds
+         */
+        public void onLateFrame(SensorGapDetector detector, long lateness);
+    }
+
+    private final SensorFrameStream.SensorFrameListener mListener;
+    private final CopyOnWriteArrayList<GapListener> mGapListeners = new CopyOnWriteArrayList<GapListener>();
+
+    private volatile float mInterval;
+    private volatile float mTolerance = 0.5f;
+    private volatile boolean mInterpolate = false;
+    private volatile int mMaxInterpolated = 10;
+
+    // The frame passed on last, copied out of its packet
+    private final byte[] mLastData = new byte[MAX_FRAME_SIZE];
+    private long mLastTime;
+    private boolean mHasLast = false;
+    private long mMask = 0;
+    private int mFrameSize = 0;
+
+    // The frame after a gap, held back until the next frame shows whether it was late
+    private final byte[] mHeldData = new byte[MAX_FRAME_SIZE];
+    private long mHeldTime;
+    private int mHeldMissing;
+    private boolean mHolding = false;
+
+    private final byte[] mInterpolatedData = new byte[MAX_FRAME_SIZE];
+    private final SensorFrame mFrame = new SensorFrame();
+    // Byte offsets of attitude roll and yaw within a frame, -1 without attitude
+    private int mRollOffset = -1;
+    private int mYawOffset = -1;
+
+    private volatile long mGapCount = 0;
+    private volatile long mMissingFrameCount = 0;
+    private volatile long mMissingTime = 0;
+    private volatile long mLateFrameCount = 0;
+    private volatile long mInterpolatedFrameCount = 0;
+
+    /**
+     * @param listener the listener the checked stream is passed to
+     * @param interval the streaming interval in milliseconds, 1000 divided by the rate
+     */
+    public SensorGapDetector(SensorFrameStream.SensorFrameListener listener, float interval) {
+        mListener = listener;
+        setFrameInterval(interval);
+    }
+
+    /**
+     * Sets the streaming interval. Call this when the streaming rate changes.
+     *
+     * @param interval the interval in milliseconds
+     */
+    public void setFrameInterval(float interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        mInterval = interval;
+    }
+
+    public float getFrameInterval() {
+        return mInterval;
+    }
+
+    /**
+     * Sets how far off the interval a frame may arrive before it counts as early or as opening a gap.
+     *
+     * @param tolerance a fraction of the interval, 0.5 by default
+     */
+    public void setTolerance(float tolerance) {
+        mTolerance = tolerance;
+    }
+
+    /**
+     * Enables interpolated frames in place of missing ones.
+     *
+     * @param interpolate True, to synthesize frames
+     * @param maxFrames the most frames synthesized for one gap. Longer gaps are left empty.
+     */
+    public void setInterpolation(boolean interpolate, int maxFrames) {
+        mInterpolate = interpolate;
+        mMaxInterpolated = maxFrames;
+    }
+
+    public void addGapListener(GapListener listener) {
+        mGapListeners.addIfAbsent(listener);
+    }
+
+    public void removeGapListener(GapListener listener) {
+        mGapListeners.remove(listener);
+    }
+
+    @Override
+    public void onSensorFrame(SensorFrame frame) {
+        float interval = mInterval;
+        long time = frame.getTimeStamp();
+
+        if (frame.getMask() != mMask) {
+            // A new configuration starts a new stream, once the old one's held frame is out
+            if (mHolding) {
+                releaseHeld(false, interval);
+            }
+            mMask = frame.getMask();
+            mFrameSize = frame.getFrameSize();
+            mFrame.setMask(mMask);
+            int attitude = mFrame.getOffset(SensorFlag.ATTITUDE);
+            mRollOffset = (attitude < 0) ? -1 : attitude + 2;
+            mYawOffset = (attitude < 0) ? -1 : attitude + 4;
+            mHasLast = false;
+        }
+
+        if (mHolding) {
+            // An early frame means the stream is catching up, so the frame after the gap was only late
+            releaseHeld(time - mHeldTime < interval * (1 - mTolerance), interval);
+        }
+
+        if (mHasLast && time - mLastTime > interval * (1 + mTolerance)) {
+            mHeldMissing = Math.max(1, Math.round((time - mLastTime) / interval) - 1);
+            mHeldTime = time;
+            copy(frame, mHeldData);
+            mHolding = true;
+            return;
+        }
+        pass(frame);
+    }
+
+    /**
+     * Passes on the frame held after a gap, if any. Call this when the stream stops, from the thread
+     * frames are delivered on.
+     */
+    public void flush() {
+        if (mHolding) {
+            releaseHeld(false, mInterval);
+        }
+    }
+
+    /**
+     * Reports what the held frame turned out to be and passes it on.
+     *
+     * @param late True, if the frame was late rather than after lost frames
+     */
+    private void releaseHeld(boolean late, float interval) {
+        mHolding = false;
+        if (late) {
+            mLateFrameCount++;
+            long lateness = (long) (mHeldTime - mLastTime - interval);
+            for (GapListener listener : mGapListeners) {
+                listener.onLateFrame(this, lateness);
+            }
+        } else {
+            reportGap(mHeldMissing, interval);
+        }
+        mFrame.setMask(mMask);
+        mFrame.setInterpolated(false);
+        mFrame.wrap(mHeldData, 0, mHeldTime);
+        pass(mFrame);
+    }
+
+    private void reportGap(int missing, float interval) {
+        long missingTime = (long) (missing * interval);
+        mGapCount++;
+        mMissingFrameCount += missing;
+        mMissingTime += missingTime;
+        for (GapListener listener : mGapListeners) {
+            listener.onGap(this, missing, missingTime);
+        }
+
+        if (!mInterpolate || missing > mMaxInterpolated) {
+            return;
+        }
+        mFrame.setMask(mMask);
+        mFrame.setInterpolated(true);
+        for (int k = 1; k <= missing; k++) {
+            float t = (float) k / (missing + 1);
+            for (int i = 0; i < mFrameSize; i += 2) {
+                int from = (short) ((mLastData[i] << 8) | (mLastData[i + 1] & 0xff));
+                int to = (short) ((mHeldData[i] << 8) | (mHeldData[i + 1] & 0xff));
+                boolean angle = (i == mRollOffset || i == mYawOffset);
+                if (angle && Math.abs(to - from) > 180) {
+                    to += (to < from) ? 360 : -360;
+                }
+                int value = Math.round(from + (to - from) * t);
+                if (angle) {
+                    value = (value > 180) ? value - 360 : (value <= -180) ? value + 360 : value;
+                }
+                mInterpolatedData[i] = (byte) (value >> 8);
+                mInterpolatedData[i + 1] = (byte) value;
+            }
+            mFrame.wrap(mInterpolatedData, 0, mLastTime + (long) (k * interval));
+            mInterpolatedFrameCount++;
+            mListener.onSensorFrame(mFrame);
+        }
+    }
+
+    private void copy(SensorFrame frame, byte[] destination) {
+        System.arraycopy(frame.getData(), frame.getFrameIndex() * mFrameSize, destination, 0, mFrameSize);
+    }
+
+    private void pass(SensorFrame frame) {
+        copy(frame, mLastData);
+        mLastTime = frame.getTimeStamp();
+        mHasLast = true;
+        mListener.onSensorFrame(frame);
+    }
+
+    /**
+     * @return the number of gaps found
+     */
+    public long getGapCount() {
+        return mGapCount;
+    }
+
+    /**
+     * @return the number of frames that never arrived
+     */
+    public long getMissingFrameCount() {
+        return mMissingFrameCount;
+    }
+
+    /**
+     * @return the total time covered by gaps, in milliseconds
+     */
+    public long getMissingTime() {
+        return mMissingTime;
+    }
+
+    /**
+     * @return the number of frames that arrived late rather than not at all
+     */
+    public long getLateFrameCount() {
+        return mLateFrameCount;
+    }
+
+    public long getInterpolatedFrameCount() {
+        return mInterpolatedFrameCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("gaps=%d missing=%d (%dms) late=%d interpolated=%d",
+                mGapCount, mMissingFrameCount, mMissingTime, mLateFrameCount, mInterpolatedFrameCount);
+    }
+}
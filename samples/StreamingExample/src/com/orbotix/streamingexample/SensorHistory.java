@@ -0,0 +1,302 @@
+package com.orbotix.streamingexample;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import orbotix.sphero.SensorFlag;
+
+/**
+ * Bounded, time-indexed history of one robot's sensor values. Add it to the robot's
+ * {@link SensorFrameStream} and it keeps the most recent frames in preallocated primitive columns, one
+ * per axis of each recorded {@link SensorFlag}, so questions like "the last 2 s of attitude" need neither
+ * hand-kept lists of {@link orbotix.robot.sensor.DeviceSensorsData} nor any allocation.
+ *
+ * The history has a single writer, the thread frames are delivered on, and any number of readers. Readers
+ * never lock: they copy out what they asked for and then check that the writer hasn't overwritten it in
+ * the meantime, retrying if it has. The check goes through a stamp per slot holding the sequence number
+ * of the frame in it. The writer claims a slot by swapping its stamp out before overwriting it, and a
+ * reader validates with a compare-and-set of the stamp against itself, so either the reader sees the
+ * claim or the writer's overwrite is ordered after everything the reader copied.
+ *
+ * Times are the frames' phone time stamps, in milliseconds. They are kept non-decreasing so lookups can
+ * binary search.
+ */
+public class SensorHistory implements SensorFrameStream.SensorFrameListener {
+
+    private static final SensorFlag[] FLAGS = SensorFlag.values();
+
+    /** Attempts a reader makes before giving up on a writer that keeps lapping it */
+    private static final int MAX_READ_ATTEMPTS = 8;
+
+    private final int mCapacity;
+    private final int mIndexMask;
+    private final long[] mTimes;
+    // Indexed by flag ordinal then axis, null for flags that aren't recorded
+    private final short[][][] mColumns = new short[FLAGS.length][][];
+
+    // Sequence number of the frame each slot holds, -1 while the writer is filling it
+    private final AtomicLongArray mStamps;
+
+    // Sequence number of the next frame. Slots are published by writing this after their data.
+    private volatile long mCount = 0;
+    // Sequence number of the first frame since the last clear
+    private volatile long mFirst = 0;
+
+    /**
+     * @param capacity the number of frames to keep, rounded up to a power of two
+     * @param flags the sensors to record. Frames that don't carry one of them record 0 for it.
+     */
+    public SensorHistory(int capacity, SensorFlag... flags) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        if (flags.length == 0) {
+            throw new IllegalArgumentException("SensorHistory requires at least one SensorFlag");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        mCapacity = size;
+        mIndexMask = size - 1;
+        mTimes = new long[size];
+        mStamps = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mStamps.set(i, -1);
+        }
+        for (SensorFlag flag : flags) {
+            mColumns[flag.ordinal()] = new short[SensorFrame.getAxisCount(flag)][size];
+        }
+    }
+
+    /**
+     * @return the number of frames the history can hold
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @param flag the sensor flag
+     * @return True, if the history records the flag
+     */
+    public boolean records(SensorFlag flag) {
+        return mColumns[flag.ordinal()] != null;
+    }
+
+    @Override
+    public void onSensorFrame(SensorFrame frame) {
+        record(frame);
+    }
+
+    /**
+     * Appends a frame. Must only be called from one thread at a time.
+     *
+     * @param frame the frame
+     */
+    public void record(SensorFrame frame) {
+        long count = mCount;
+        int slot = (int) count & mIndexMask;
+        mStamps.getAndSet(slot, -1);
+
+        long time = frame.getTimeStamp();
+        if (count > mFirst) {
+            time = Math.max(time, mTimes[(int) (count - 1) & mIndexMask]);
+        }
+        mTimes[slot] = time;
+
+        for (int f = 0; f < FLAGS.length; f++) {
+            short[][] columns = mColumns[f];
+            if (columns == null) {
+                continue;
+            }
+            for (int axis = 0; axis < columns.length; axis++) {
+                columns[axis][slot] = (short) frame.getInt(FLAGS[f], axis);
+            }
+        }
+        mStamps.set(slot, count);
+        mCount = count + 1;
+    }
+
+    /**
+     * Forgets everything. Must be called from the writer thread.
+     */
+    public void clear() {
+        // Sequence numbers keep counting, so a stamp never comes back with a value a reader expects
+        mFirst = mCount;
+    }
+
+    /**
+     * @return the number of frames recorded since the history was created or cleared
+     */
+    public long getCount() {
+        return mCount - mFirst;
+    }
+
+    /**
+     * Returns the oldest sequence number that is safe to read for the given count. The slot of the
+     * oldest kept frame is the one the writer fills next, so it is left out.
+     */
+    private long oldest(long count) {
+        return Math.max(mFirst, count - mCapacity + 1);
+    }
+
+    /**
+     * Checks that the slot of a frame still holds it. The writer overwrites slots in sequence order, so
+     * validating the oldest frame read validates every newer one as well.
+     *
+     * @param sequence the sequence number of the oldest frame read
+     * @return True, if nothing read since the frame was found has been overwritten
+     */
+    private boolean validate(long sequence) {
+        // A plain volatile read could be reordered ahead of the copy, the write half of the CAS can't
+        return mStamps.compareAndSet((int) sequence & mIndexMask, sequence, sequence);
+    }
+
+    /**
+     * @return the time of the newest frame, or -1 if there is none
+     */
+    public long getNewestTime() {
+        long count = mCount;
+        return (count <= mFirst) ? -1 : mTimes[(int) (count - 1) & mIndexMask];
+    }
+
+    /**
+     * @return the time of the oldest frame still held, or -1 if there is none
+     */
+    public long getOldestTime() {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long count = mCount;
+            long sequence = oldest(count);
+            if (sequence >= count) {
+                return -1;
+            }
+            long time = mTimes[(int) sequence & mIndexMask];
+            if (validate(sequence)) {
+                return time;
+            }
+        }
+        return getNewestTime();
+    }
+
+    /**
+     * Returns the most recent value of a sensor axis.
+     *
+     * @param flag the sensor flag
+     * @param axis the axis within the flag
+     * @return the scaled value, as {@link SensorFrame#getFloat(SensorFlag, int)} returns it, or 0 if there
+     *         is no frame yet
+     */
+    public float getLatest(SensorFlag flag, int axis) {
+        short[] column = getColumn(flag, axis);
+        long count = mCount;
+        return (count <= mFirst) ? 0 : SensorFrame.scale(flag, column[(int) (count - 1) & mIndexMask]);
+    }
+
+    private short[] getColumn(SensorFlag flag, int axis) {
+        short[][] columns = mColumns[flag.ordinal()];
+        if (columns == null) {
+            throw new IllegalArgumentException(flag + " is not recorded");
+        }
+        return columns[axis];
+    }
+
+    /**
+     * Finds the first held frame at or after the given time.
+     *
+     * @return the frame's sequence number, or count if every held frame is older
+     */
+    private long search(long time, long from, long to) {
+        long low = from;
+        long high = to;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (mTimes[(int) mid & mIndexMask] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copies the values of one sensor axis recorded between two times into the caller's arrays, oldest
+     * first. If more frames match than fit, the newest ones are kept.
+     *
+     * @param flag the sensor flag
+     * @param axis the axis within the flag
+     * @param from the start of the range, inclusive, in milliseconds
+     * @param to the end of the range, inclusive, in milliseconds
+     * @param times receives the frame times, may be null
+     * @param values receives the scaled values
+     * @return the number of frames copied
+     */
+    public int query(SensorFlag flag, int axis, long from, long to, long[] times, float[] values) {
+        short[] column = getColumn(flag, axis);
+        int room = (times != null) ? Math.min(times.length, values.length) : values.length;
+
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long count = mCount;
+            long oldest = oldest(count);
+            if (oldest >= count) {
+                return 0;
+            }
+            long start = search(from, oldest, count);
+            long end = search(to + 1, start, count);
+            start = Math.max(start, end - room);
+
+            int n = (int) (end - start);
+            for (int i = 0; i < n; i++) {
+                int slot = (int) (start + i) & mIndexMask;
+                if (times != null) {
+                    times[i] = mTimes[slot];
+                }
+                values[i] = SensorFrame.scale(flag, column[slot]);
+            }
+
+            // The search read from the oldest frame on, so that is the one to validate
+            if (validate(oldest)) {
+                return n;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Copies the values of one sensor axis recorded during the most recent period.
+     *
+     * @param flag the sensor flag
+     * @param axis the axis within the flag
+     * @param duration the length of the period, in milliseconds, ending at the newest frame
+     * @param times receives the frame times, may be null
+     * @param values receives the scaled values
+     * @return the number of frames copied
+     */
+    public int queryLast(SensorFlag flag, int axis, long duration, long[] times, float[] values) {
+        long newest = getNewestTime();
+        if (newest < 0) {
+            return 0;
+        }
+        return query(flag, axis, newest - duration, newest, times, values);
+    }
+
+    /**
+     * Counts the held frames between two times.
+     *
+     * @param from the start of the range, inclusive, in milliseconds
+     * @param to the end of the range, inclusive, in milliseconds
+     * @return the number of frames
+     */
+    public int count(long from, long to) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long count = mCount;
+            long oldest = oldest(count);
+            if (oldest >= count) {
+                return 0;
+            }
+            long start = search(from, oldest, count);
+            long end = search(to + 1, start, count);
+            if (validate(oldest)) {
+                return (int) (end - start);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,187 @@
+package com.orbotix.streamingexample;
+
+import orbotix.sphero.SensorFlag;
+
+/**
+ * Shares one robot's sensor stream between listeners that want different rates and sensors. The robot
+ * is asked for the union of the listeners' sensors at the fastest rate any listener asked for, and each
+ * listener gets frames at its own rate, showing only the sensors it asked for. Frames are picked by
+ * accumulated phase, so a listener whose rate doesn't divide the streamed rate still gets its rate on
+ * average, with frames a streamed interval early or late.
+ *
+ * The streaming command is resent only when adding or removing a listener changes the rate or the mask.
+ * The robot stops streaming when the last listener goes away. If something else changes the rate, such
+ * as a {@link StreamRateGovernor}, every listener's share of the frames is worked out again from the new
+ * rate. A listener that asked for more than the robot now streams gets every frame.
+ */
+public class SensorMultiplexer {
+
+    private static class Subscription {
+        final SensorFrameStream.SensorFrameListener listener;
+        final int divisor;
+        final long mask;
+        final SensorFrame frame = new SensorFrame();
+
+        // Firmware divisor units since the last delivery, a frame is delivered once it reaches divisor
+        int phase;
+
+        Subscription(SensorFrameStream.SensorFrameListener listener, int divisor, long mask) {
+            this.listener = listener;
+            this.divisor = divisor;
+            this.mask = mask;
+            frame.setVisibleMask(mask);
+        }
+    }
+
+    private final SensorStreaming mStreaming;
+
+    // Copied on write so delivery iterates without locking or allocating
+    private volatile Subscription[] mSubscriptions = new Subscription[0];
+    private volatile int mDivisor = 1;
+
+    private final SensorStreaming.ConfigurationListener mConfigurationListener = new SensorStreaming.ConfigurationListener() {
+        @Override
+        public void onConfigurationChanged(SensorStreaming streaming) {
+            setDivisor(mSubscriptions, streaming.getDivisor());
+        }
+    };
+
+    private final SensorFrameStream.SensorFrameListener mFrameListener = new SensorFrameStream.SensorFrameListener() {
+        @Override
+        public void onSensorFrame(SensorFrame frame) {
+            deliver(frame);
+        }
+    };
+
+    public SensorMultiplexer(SensorStreaming streaming) {
+        mStreaming = streaming;
+        streaming.addConfigurationListener(mConfigurationListener);
+    }
+
+    public SensorStreaming getStreaming() {
+        return mStreaming;
+    }
+
+    /**
+     * Subscribes a listener. Subscribing a listener again replaces its rate and sensors.
+     *
+     * @param listener the listener
+     * @param rate the rate the listener wants, in Hz. It is rounded to a divisor of
+     *             {@link SensorStreaming#MAX_RATE}
+     * @param flags the sensors the listener wants to see
+     */
+    public synchronized void addSensorListener(SensorFrameStream.SensorFrameListener listener, int rate, SensorFlag... flags) {
+        if (flags.length == 0) {
+            throw new IllegalArgumentException("addSensorListener requires at least one SensorFlag");
+        }
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        long mask = 0;
+        for (SensorFlag flag : flags) {
+            mask |= SensorFrame.getMaskBits(flag);
+        }
+        int divisor = SensorStreaming.MAX_RATE / Math.min(rate, SensorStreaming.MAX_RATE);
+
+        Subscription[] old = removeFrom(mSubscriptions, listener);
+        Subscription[] subscriptions = new Subscription[old.length + 1];
+        System.arraycopy(old, 0, subscriptions, 0, old.length);
+        subscriptions[old.length] = new Subscription(listener, divisor, mask);
+        reconfigure(subscriptions);
+    }
+
+    public synchronized void removeSensorListener(SensorFrameStream.SensorFrameListener listener) {
+        Subscription[] subscriptions = removeFrom(mSubscriptions, listener);
+        if (subscriptions != mSubscriptions) {
+            reconfigure(subscriptions);
+        }
+    }
+
+    private static Subscription[] removeFrom(Subscription[] subscriptions, SensorFrameStream.SensorFrameListener listener) {
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i].listener == listener) {
+                Subscription[] result = new Subscription[subscriptions.length - 1];
+                System.arraycopy(subscriptions, 0, result, 0, i);
+                System.arraycopy(subscriptions, i + 1, result, i, subscriptions.length - i - 1);
+                return result;
+            }
+        }
+        return subscriptions;
+    }
+
+    private void reconfigure(Subscription[] subscriptions) {
+        SensorFrameStream stream = mStreaming.getFrameStream();
+
+        if (subscriptions.length == 0) {
+            mSubscriptions = subscriptions;
+            stream.removeSensorFrameListener(mFrameListener);
+            mStreaming.stop();
+            return;
+        }
+
+        // The fastest listener sets the rate, the others are served by phase
+        int divisor = Integer.MAX_VALUE;
+        long mask = 0;
+        for (Subscription subscription : subscriptions) {
+            divisor = Math.min(divisor, subscription.divisor);
+            mask |= subscription.mask;
+        }
+        setDivisor(subscriptions, divisor);
+        mSubscriptions = subscriptions;
+
+        mStreaming.setDivisorAndMask(divisor, mask);
+        stream.addSensorFrameListener(mFrameListener);
+        if (!mStreaming.isStreaming()) {
+            mStreaming.start();
+        }
+    }
+
+    /**
+     * Sets the firmware divisor the frames arrive at. Every listener gets the next frame.
+     */
+    private void setDivisor(Subscription[] subscriptions, int divisor) {
+        for (Subscription subscription : subscriptions) {
+            subscription.phase = Math.max(0, subscription.divisor - divisor);
+        }
+        mDivisor = divisor;
+    }
+
+    private void deliver(SensorFrame frame) {
+        Subscription[] subscriptions = mSubscriptions;
+        int divisor = mDivisor;
+        for (int i = 0; i < subscriptions.length; i++) {
+            Subscription subscription = subscriptions[i];
+            int phase = subscription.phase + divisor;
+            if (phase < subscription.divisor) {
+                subscription.phase = phase;
+                continue;
+            }
+            // Carry the remainder so the average rate is exact. A listener that asked for more than the
+            // robot streams gets every frame, without building up a backlog.
+            subscription.phase = Math.min(phase - subscription.divisor, subscription.divisor);
+
+            SensorFrame view = subscription.frame;
+            view.setMask(frame.getMask());
+            view.wrap(frame.getData(), frame.getFrameIndex(), frame.getTimeStamp());
+            subscription.listener.onSensorFrame(view);
+        }
+    }
+
+    /**
+     * @return the rate the robot is asked to stream at, in Hz, or 0 when nothing is subscribed
+     */
+    public synchronized float getStreamingRate() {
+        return (mSubscriptions.length == 0) ? 0 : mStreaming.getRate();
+    }
+
+    /**
+     * @return the mask the robot is asked to stream, or 0 when nothing is subscribed
+     */
+    public synchronized long getStreamingMask() {
+        return (mSubscriptions.length == 0) ? 0 : mStreaming.getMask();
+    }
+
+    public int getListenerCount() {
+        return mSubscriptions.length;
+    }
+}
@@ -0,0 +1,200 @@
+package com.orbotix.streamingexample;
+
+import android.util.Log;
+import orbotix.robot.base.DeviceAsyncData;
+import orbotix.robot.base.DeviceMessenger;
+import orbotix.robot.base.DeviceSensorsAsyncData;
+import orbotix.robot.base.Robot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Records a robot's sensor packets to a file so the session can be replayed later with
+ * {@link SensorReplayer}. Each packet is stored as the robot sent it, together with the streaming mask it
+ * was requested with and the phone time it arrived at.
+ *
+ * The file is written through a memory map that grows one segment at a time, so recording a packet is a
+ * copy into memory rather than a write call. Every segment is forced to the file and the file is trimmed
+ * to its contents on {@link #stop()}. A recording that wasn't stopped ends in zeros, which
+ * {@link SensorReplayer} takes as the end of the data.
+ *
+ * File layout, big-endian: a header of magic, version and start time, then one record per packet of
+ * arrival time, mask, packet length and packet bytes.
+ */
+public class SensorRecorder {
+
+    private static final String TAG = "OBX-SensorRecorder";
+
+    static final int MAGIC = 0x4F425852;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 4 + 2 + 2 + 8;
+    static final int RECORD_HEADER_SIZE = 8 + 8 + 4;
+
+    /** Default size the mapping grows by, in bytes */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private final Robot mRobot;
+    private final SensorFrameStream mFrameStream;
+    private final File mFile;
+    private int mSegmentSize = DEFAULT_SEGMENT_SIZE;
+
+    // Protected by this
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private final ArrayList<MappedByteBuffer> mSegments = new ArrayList<MappedByteBuffer>();
+    private long mSegmentStart;
+    private long mPacketCount;
+    private boolean mFailed;
+
+    private final DeviceMessenger.AsyncDataListener mAsyncDataListener = new DeviceMessenger.AsyncDataListener() {
+        @Override
+        public void onDataReceived(DeviceAsyncData data) {
+            if (data instanceof DeviceSensorsAsyncData) {
+                long mask = (mFrameStream != null) ? mFrameStream.getMask() : 0;
+                record(data.getPacket(), (mask != 0) ? mask : DeviceSensorsAsyncData.sMask,
+                        data.getTimeStamp().getTime());
+            }
+        }
+    };
+
+    /**
+     * Creates a recorder for a robot streaming through {@link orbotix.sphero.SensorControl}, whose
+     * packets use the SDK's shared mask.
+     *
+     * @param robot the robot
+     * @param file the file to record to. It is overwritten.
+     */
+    public SensorRecorder(Robot robot, File file) {
+        this(robot, null, file);
+    }
+
+    /**
+     * Creates a recorder for a robot streaming through {@link SensorStreaming}, whose packets use the
+     * robot's own mask.
+     *
+     * @param streaming the robot's streaming configuration
+     * @param file the file to record to. It is overwritten.
+     */
+    public SensorRecorder(SensorStreaming streaming, File file) {
+        this(streaming.getRobot(), streaming.getFrameStream(), file);
+    }
+
+    private SensorRecorder(Robot robot, SensorFrameStream frameStream, File file) {
+        mRobot = robot;
+        mFrameStream = frameStream;
+        mFile = file;
+    }
+
+    /**
+     * Sets the size the mapping grows by. Takes effect on the next {@link #start()}.
+     *
+     * @param size the segment size in bytes
+     */
+    public void setSegmentSize(int size) {
+        if (size < HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segment size too small");
+        }
+        mSegmentSize = size;
+    }
+
+    /**
+     * Starts recording.
+     *
+     * @throws IOException if the file can't be created or mapped
+     */
+    public synchronized void start() throws IOException {
+        if (mChannel != null) {
+            return;
+        }
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+        mSegmentStart = 0;
+        mPacketCount = 0;
+        mFailed = false;
+        map(0);
+
+        mBuffer.putInt(MAGIC);
+        mBuffer.putShort(VERSION);
+        mBuffer.putShort((short) 0);
+        mBuffer.putLong(System.currentTimeMillis());
+
+        DeviceMessenger.getInstance().addAsyncDataListener(mRobot, mAsyncDataListener);
+    }
+
+    /**
+     * Stops recording and trims the file to the recorded packets.
+     */
+    public synchronized void stop() {
+        if (mChannel == null) {
+            return;
+        }
+        DeviceMessenger.getInstance().removeAsyncDataListener(mRobot, mAsyncDataListener);
+        try {
+            long length = mSegmentStart + mBuffer.position();
+            for (MappedByteBuffer segment : mSegments) {
+                segment.force();
+            }
+            mSegments.clear();
+            mBuffer = null;
+            mChannel.truncate(length);
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not finish " + mFile, e);
+        }
+        mChannel = null;
+        mRandomAccessFile = null;
+    }
+
+    public synchronized boolean isRecording() {
+        return mChannel != null;
+    }
+
+    public synchronized long getPacketCount() {
+        return mPacketCount;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    private void map(long position) throws IOException {
+        mSegmentStart = position;
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, position, mSegmentSize);
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        // Forced on stop(), a segment that is no longer mapped in mBuffer may still hold unwritten pages
+        mSegments.add(mBuffer);
+    }
+
+    private synchronized void record(byte[] packet, long mask, long time) {
+        if (mChannel == null || mFailed) {
+            return;
+        }
+        int size = RECORD_HEADER_SIZE + packet.length;
+        try {
+            if (mBuffer.remaining() < size) {
+                if (size > mSegmentSize) {
+                    throw new IOException("packet of " + packet.length + " bytes exceeds the segment size");
+                }
+                map(mSegmentStart + mBuffer.position());
+            }
+        } catch (IOException e) {
+            // Keep what was recorded so far rather than failing on every packet
+            Log.e(TAG, "Recording to " + mFile + " failed", e);
+            mFailed = true;
+            return;
+        }
+        mBuffer.putLong(time);
+        mBuffer.putLong(mask);
+        mBuffer.putInt(packet.length);
+        mBuffer.put(packet);
+        mPacketCount++;
+    }
+}
@@ -0,0 +1,253 @@
+package com.orbotix.streamingexample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import orbotix.robot.base.DeviceMessenger;
+import orbotix.robot.base.DeviceSensorsAsyncData;
+import orbotix.robot.base.Robot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Replays a file written by {@link SensorRecorder}. Every recorded packet is parsed by the SDK again and
+ * posted through {@link DeviceMessenger}, so {@link orbotix.sphero.SensorListener}s,
+ * {@link orbotix.sphero.LocatorListener}s and {@link SensorFrameStream}s attached to the robot receive it.
+ * The packets are posted as {@link MaskedSensorsAsyncData} carrying their recorded mask, and a
+ * {@link SensorFrameStream} decodes them with that mask, whatever mask it was given for live streaming.
+ * Time stamps are the replay times, not the recorded ones.
+ *
+ * Packets are replayed at the recorded pace times the speed factor, or back to back when the speed is
+ * {@link #MAX_SPEED}. At max speed the replay doubles as a decode benchmark on real data:
+ * {@link #getPacketsPerSecond()} is the rate the SDK parsed packets at. The SDK delivers posted packets on
+ * the main thread, so the replay never runs more than {@link #MAX_PACKETS_IN_FLIGHT} packets ahead of it.
+ *
+ * The SDK parses against its process-wide mask and frames per packet, which the replayer sets for each
+ * packet and restores afterwards. Don't replay while a robot is streaming live through
+ * {@link orbotix.sphero.SensorControl}.
+ */
+public class SensorReplayer {
+
+    private static final String TAG = "OBX-SensorReplayer";
+
+    /** Speed that replays packets as fast as they can be parsed */
+    public static final float MAX_SPEED = 0;
+
+    /** Most packets posted to the main thread and not delivered yet */
+    public static final int MAX_PACKETS_IN_FLIGHT = 32;
+
+    /**
+     * Notified on the replay thread when the replay reaches the end of the file or is stopped.
+     */
+    public interface ReplayListener {
+        public void onReplayFinished(SensorReplayer replayer);
+    }
+
+    private final Robot mRobot;
+    private final File mFile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Semaphore mInFlight = new Semaphore(MAX_PACKETS_IN_FLIGHT);
+    private final Runnable mDeliveredRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mInFlight.release();
+        }
+    };
+    private volatile float mSpeed = 1;
+    private volatile ReplayListener mListener;
+
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+
+    private volatile long mPacketCount = 0;
+    private volatile long mParseNanos = 0;
+
+    /**
+     * @param robot the robot the packets are posted for
+     * @param file a file written by {@link SensorRecorder}
+     */
+    public SensorReplayer(Robot robot, File file) {
+        mRobot = robot;
+        mFile = file;
+    }
+
+    /**
+     * Sets the replay speed. Takes effect on the next packet.
+     *
+     * @param speed 1 for real time, N for N times faster, or {@link #MAX_SPEED}
+     */
+    public void setSpeed(float speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed must not be negative");
+        }
+        mSpeed = speed;
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    public void setReplayListener(ReplayListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts replaying on a background thread.
+     *
+     * @throws IOException if the file can't be mapped or isn't a recording
+     */
+    public synchronized void start() throws IOException {
+        if (mThread != null) {
+            return;
+        }
+        final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        final MappedByteBuffer buffer;
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.remaining() < SensorRecorder.HEADER_SIZE || buffer.getInt() != SensorRecorder.MAGIC) {
+                throw new IOException(mFile + " is not a sensor recording");
+            }
+            short version = buffer.getShort();
+            if (version != SensorRecorder.VERSION) {
+                throw new IOException(mFile + " has unsupported version " + version);
+            }
+            buffer.getShort();
+            buffer.getLong();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+
+        mPacketCount = 0;
+        mParseNanos = 0;
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay(buffer);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Replaying " + mFile + " failed", e);
+                } finally {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not close " + mFile, e);
+                    }
+                    synchronized (SensorReplayer.this) {
+                        mThread = null;
+                        mRunning = false;
+                    }
+                    ReplayListener listener = mListener;
+                    if (listener != null) {
+                        listener.onReplayFinished(SensorReplayer.this);
+                    }
+                }
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stops the replay. The replay listener is still notified.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    private void replay(MappedByteBuffer buffer) {
+        DeviceMessenger messenger = DeviceMessenger.getInstance();
+        long firstTime = -1;
+        long startNanos = System.nanoTime();
+
+        while (mRunning && buffer.remaining() >= SensorRecorder.RECORD_HEADER_SIZE) {
+            long time = buffer.getLong();
+            long mask = buffer.getLong();
+            int length = buffer.getInt();
+            // A recording that wasn't stopped runs on in zeros to the end of its last segment
+            if (time == 0 || length < 6) {
+                return;
+            }
+            if (length > buffer.remaining()) {
+                Log.w(TAG, mFile + " ends with a truncated packet");
+                return;
+            }
+            byte[] packet = new byte[length];
+            buffer.get(packet);
+
+            float speed = mSpeed;
+            if (firstTime < 0) {
+                firstTime = time;
+            } else if (speed != MAX_SPEED) {
+                long due = startNanos + (long) ((time - firstTime) * 1000000L / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            // Packets carry the two start bytes, id code, two length bytes and a checksum around the frames
+            int frameSize = SensorFrame.getFrameSize(mask);
+            int frames = (frameSize == 0) ? 1 : Math.max(1, (length - 6) / frameSize);
+
+            long parseStart = System.nanoTime();
+            DeviceSensorsAsyncData data;
+            synchronized (SensorStreaming.SHARED_STATE_LOCK) {
+                long sharedMask = DeviceSensorsAsyncData.sMask;
+                int sharedPacketFrames = DeviceSensorsAsyncData.sPacketFrames;
+                DeviceSensorsAsyncData.sMask = mask;
+                DeviceSensorsAsyncData.sPacketFrames = frames;
+                try {
+                    data = new MaskedSensorsAsyncData(mRobot, packet, mask);
+                } finally {
+                    DeviceSensorsAsyncData.sMask = sharedMask;
+                    DeviceSensorsAsyncData.sPacketFrames = sharedPacketFrames;
+                }
+            }
+            mParseNanos += System.nanoTime() - parseStart;
+            mPacketCount++;
+
+            try {
+                mInFlight.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Both go through the main looper in order, so the release runs once the packet was delivered
+            messenger.postAsyncData(mRobot, data);
+            mMainHandler.post(mDeliveredRunnable);
+        }
+    }
+
+    /**
+     * @return the number of packets replayed so far
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return the rate the SDK parsed the replayed packets at, in packets per second
+     */
+    public double getPacketsPerSecond() {
+        long nanos = mParseNanos;
+        return (nanos == 0) ? 0 : mPacketCount * 1e9 / nanos;
+    }
+}
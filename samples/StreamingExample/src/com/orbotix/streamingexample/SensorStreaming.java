@@ -0,0 +1,307 @@
+package com.orbotix.streamingexample;
+
+import android.util.Log;
+import orbotix.robot.base.DeviceSensorsAsyncData;
+import orbotix.robot.base.Robot;
+import orbotix.robot.base.SetDataStreamingCommand;
+import orbotix.sphero.SensorFlag;
+
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streaming configuration owned by a single robot. Unlike {@link orbotix.sphero.SensorControl}, whose
+ * packets are parsed against the mask shared by every robot in the process, each robot gets its own
+ * mask, rate and frames per packet, and its packets are decoded by its own {@link SensorFrameStream}
+ * against that mask. One phone can therefore stream different sensor sets from several robots at once.
+ *
+ * Listen through {@link #getFrameStream()}. The SDK's {@link SetDataStreamingCommand} stores its mask
+ * and frames per packet in {@link DeviceSensorsAsyncData#sMask} and
+ * {@link DeviceSensorsAsyncData#sPacketFrames}, which the SDK parses every robot's packets against.
+ * This class builds its commands through {@link #newStreamingCommand}, which puts both back straight
+ * away, so configuring one robot never changes how the SDK parses another's packets.
+ *
+ * Don't stream through SensorControl on any robot while this class is in use. The SDK would parse this
+ * class's packets against SensorControl's mask, hand garbage to that robot's
+ * {@link orbotix.sphero.SensorListener}s, and drop the upper half of the mask whenever a packet is too
+ * short for it. With SensorControl unused the shared mask stays 0 and the SDK skips parsing altogether.
+ */
+public class SensorStreaming {
+
+    private static final String TAG = "OBX-Streaming";
+
+    /** Sampling rate of the robot's control system, which the divisor divides down */
+    public static final int MAX_RATE = 400;
+
+    /**
+     * Notified after the rate, mask or frames per packet changed, on the thread that changed them.
+     */
+    public interface ConfigurationListener {
+        public void onConfigurationChanged(SensorStreaming streaming);
+    }
+
+    private static final HashMap<Robot, SensorStreaming> sStreamings = new HashMap<Robot, SensorStreaming>();
+
+    /** Held while this sample changes the SDK's shared parse state, see {@link #newStreamingCommand} */
+    static final Object SHARED_STATE_LOCK = new Object();
+
+    private final Robot mRobot;
+    private final SensorFrameStream mFrameStream;
+    private final CopyOnWriteArrayList<ConfigurationListener> mConfigurationListeners =
+            new CopyOnWriteArrayList<ConfigurationListener>();
+
+    private long mMask = 0;
+    private int mDivisor = MAX_RATE / 10;
+    private int mPacketFrames = 1;
+    private boolean mStreaming = false;
+
+    /**
+     * Returns the streaming configuration of the given robot, creating it on first use.
+     *
+     * @param robot the robot
+     * @return the robot's streaming configuration
+     */
+    public static synchronized SensorStreaming forRobot(Robot robot) {
+        SensorStreaming streaming = sStreamings.get(robot);
+        if (streaming == null) {
+            streaming = new SensorStreaming(robot);
+            sStreamings.put(robot, streaming);
+        }
+        return streaming;
+    }
+
+    /**
+     * Forgets the streaming configuration of the given robot. Call this when the robot disconnects.
+     *
+     * @param robot the robot
+     */
+    public static synchronized void release(Robot robot) {
+        sStreamings.remove(robot);
+    }
+
+    private SensorStreaming(Robot robot) {
+        mRobot = robot;
+        mFrameStream = new SensorFrameStream(robot);
+    }
+
+    public Robot getRobot() {
+        return mRobot;
+    }
+
+    public void addConfigurationListener(ConfigurationListener listener) {
+        mConfigurationListeners.addIfAbsent(listener);
+    }
+
+    public void removeConfigurationListener(ConfigurationListener listener) {
+        mConfigurationListeners.remove(listener);
+    }
+
+    /**
+     * @return the stream that delivers this robot's frames, decoded against this robot's mask
+     */
+    public SensorFrameStream getFrameStream() {
+        return mFrameStream;
+    }
+
+    /**
+     * Sets the streaming rate. The rate is turned into a divisor of {@link #MAX_RATE}, so the effective
+     * rate is {@link #getRate()}.
+     *
+     * @param hz the requested rate in Hz, from 1 to {@link #MAX_RATE}
+     */
+    public synchronized void setRate(int hz) {
+        if (hz <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        setDivisor(MAX_RATE / Math.min(hz, MAX_RATE));
+    }
+
+    /**
+     * @return the effective streaming rate, in frames per second
+     */
+    public synchronized float getRate() {
+        return (float) MAX_RATE / mDivisor;
+    }
+
+    /**
+     * Sets the divisor of the robot's {@link #MAX_RATE} Hz sampling rate.
+     *
+     * @param divisor a value from 1 up
+     */
+    public synchronized void setDivisor(int divisor) {
+        if (divisor <= 0) {
+            throw new IllegalArgumentException("divisor must be positive");
+        }
+        if (divisor != mDivisor) {
+            mDivisor = divisor;
+            update();
+            notifyConfigurationChanged();
+        }
+    }
+
+    public synchronized int getDivisor() {
+        return mDivisor;
+    }
+
+    /**
+     * Sets how many frames the robot puts in each packet. Batching cuts the per-packet framing, checksum
+     * and dispatch work by the same factor, at the cost of latency; receive whole packets with a
+     * {@link SensorFrameStream.SensorBatchListener}.
+     *
+     * @param frames a value from 1 up
+     */
+    public synchronized void setPacketFrames(int frames) {
+        if (frames <= 0) {
+            throw new IllegalArgumentException("frames must be positive");
+        }
+        if (frames != mPacketFrames) {
+            mPacketFrames = frames;
+            update();
+            notifyConfigurationChanged();
+        }
+    }
+
+    /**
+     * Replaces the divisor and the frames per packet together, so the robot gets a single streaming
+     * command.
+     *
+     * @param divisor the divisor of {@link #MAX_RATE}, from 1 up
+     * @param frames the frames per packet, from 1 up
+     */
+    public synchronized void setDivisorAndPacketFrames(int divisor, int frames) {
+        if (divisor <= 0 || frames <= 0) {
+            throw new IllegalArgumentException("divisor and frames must be positive");
+        }
+        if (divisor != mDivisor || frames != mPacketFrames) {
+            mDivisor = divisor;
+            mPacketFrames = frames;
+            update();
+            notifyConfigurationChanged();
+        }
+    }
+
+    public synchronized int getPacketFrames() {
+        return mPacketFrames;
+    }
+
+    /**
+     * Replaces the set of streamed sensors.
+     *
+     * @param flags the sensors to stream
+     */
+    public synchronized void setFlags(SensorFlag... flags) {
+        long mask = 0;
+        for (SensorFlag flag : flags) {
+            mask |= SensorFrame.getMaskBits(flag);
+        }
+        setMask(mask);
+    }
+
+    /**
+     * Replaces the streaming mask.
+     *
+     * @param mask the 64 bit streaming mask
+     */
+    public synchronized void setMask(long mask) {
+        if (mask != mMask) {
+            mMask = mask;
+            update();
+            notifyConfigurationChanged();
+        }
+    }
+
+    /**
+     * Replaces the divisor and the mask together, so the robot gets a single streaming command.
+     *
+     * @param divisor the divisor of {@link #MAX_RATE}, from 1 up
+     * @param mask the 64 bit streaming mask
+     */
+    public synchronized void setDivisorAndMask(int divisor, long mask) {
+        if (divisor <= 0) {
+            throw new IllegalArgumentException("divisor must be positive");
+        }
+        if (divisor != mDivisor || mask != mMask) {
+            mDivisor = divisor;
+            mMask = mask;
+            update();
+            notifyConfigurationChanged();
+        }
+    }
+
+    public synchronized long getMask() {
+        return mMask;
+    }
+
+    public synchronized boolean isStreaming() {
+        return mStreaming;
+    }
+
+    /**
+     * Asks the robot to start streaming with the current configuration. Later changes to the
+     * configuration are sent to the robot straight away.
+     */
+    public synchronized void start() {
+        if (DeviceSensorsAsyncData.sMask != 0) {
+            Log.w(TAG, "SensorControl is streaming too, the SDK will parse " + mRobot.getName()
+                    + "'s packets against its mask");
+        }
+        mStreaming = true;
+        update();
+    }
+
+    /**
+     * Asks the robot to stop streaming. The configuration is kept.
+     */
+    public synchronized void stop() {
+        if (!mStreaming) {
+            return;
+        }
+        mStreaming = false;
+        mRobot.doCommand(newStreamingCommand(MAX_RATE, 1, 0, 1));
+    }
+
+    /**
+     * Creates a streaming command without disturbing the SDK's shared parse state. The command's
+     * constructor overwrites {@link DeviceSensorsAsyncData#sMask} and
+     * {@link DeviceSensorsAsyncData#sPacketFrames}; both are restored before this returns. The SDK's
+     * reader doesn't lock, so it may still see the command's values for the few instructions in between.
+     *
+     * @param divisor the divisor of {@link #MAX_RATE}
+     * @param packetFrames the frames per packet
+     * @param mask the 64 bit streaming mask
+     * @param packetCount the number of packets to stream, 0 for no limit
+     * @return the command
+     */
+    static SetDataStreamingCommand newStreamingCommand(int divisor, int packetFrames, long mask, int packetCount) {
+        synchronized (SHARED_STATE_LOCK) {
+            long sharedMask = DeviceSensorsAsyncData.sMask;
+            int sharedPacketFrames = DeviceSensorsAsyncData.sPacketFrames;
+            SetDataStreamingCommand command = new SetDataStreamingCommand(divisor, packetFrames, mask, packetCount);
+            DeviceSensorsAsyncData.sMask = sharedMask;
+            DeviceSensorsAsyncData.sPacketFrames = sharedPacketFrames;
+            return command;
+        }
+    }
+
+    private void notifyConfigurationChanged() {
+        for (ConfigurationListener listener : mConfigurationListeners) {
+            listener.onConfigurationChanged(this);
+        }
+    }
+
+    private void update() {
+        if (!mStreaming) {
+            return;
+        }
+        if (mMask == 0) {
+            Log.w(TAG, "Not streaming from " + mRobot.getName() + ", no sensors selected");
+            return;
+        }
+        // Packets still in flight for the old mask are skipped by the frame stream if their size doesn't fit
+        mFrameStream.setMask(mMask);
+        mFrameStream.setFrameInterval(1000.0f * mDivisor / MAX_RATE);
+        SetDataStreamingCommand command = newStreamingCommand(mDivisor, mPacketFrames, mMask, 0);
+        Log.d(TAG, "Streaming from " + mRobot.getName() + ": " + command);
+        mRobot.doCommand(command);
+    }
+}
@@ -0,0 +1,388 @@
+package com.orbotix.streamingexample;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps a robot's sensor stream within what its Bluetooth link can carry. The governor counts the frames
+ * and bytes that actually arrive and the longest gap between two packets, and once per window compares
+ * them to what the current {@link SensorStreaming} configuration should deliver.
+ *
+ * When the link falls behind, the rate is stepped down by doubling the divisor and, once the divisor
+ * reaches its bound, the frames per packet are doubled so fewer packets carry the same frames. The bytes
+ * that did arrive show what the link carries, so a congested window takes as many steps as it needs for
+ * the expected bytes per second to fit, in a single change. Every configuration left behind is kept, and
+ * after a few healthy windows the last one is restored, so recovery retraces the steps in reverse order
+ * back to the starting configuration. Each change resends the streaming command once and notifies the
+ * listeners. A {@link SensorMultiplexer} on the same streaming follows each change.
+ *
+ * Unless bounds are set, the governor never streams faster, or with fewer frames per packet, than the
+ * configuration it started with. If something else changes the configuration, that becomes the new
+ * starting point.
+ *
+ * Gaps are measured between the times the SDK received the packets, see {@link SensorFrameStream}, so
+ * a main thread that is slow to deliver them isn't mistaken for a congested link.
+ */
+public class StreamRateGovernor {
+
+    /** Default length of an evaluation window, in milliseconds */
+    public static final long DEFAULT_WINDOW = 1000;
+
+    /** Bytes of framing around each async packet: two start bytes, id code, two length bytes, checksum */
+    private static final int PACKET_OVERHEAD = 6;
+
+    /**
+     * Notified every time the governor changes the streaming configuration.
+     */
+    public interface StreamRateListener {
+        public void onStreamRateChanged(StreamRateGovernor governor, float rate, int packetFrames);
+    }
+
+    private final SensorStreaming mStreaming;
+    private final Handler mHandler = new Handler();
+    private final CopyOnWriteArrayList<StreamRateListener> mListeners = new CopyOnWriteArrayList<StreamRateListener>();
+
+    private long mWindow = DEFAULT_WINDOW;
+    // 0 for the starting configuration
+    private int mMinDivisor = 0;
+    private int mMaxDivisor = SensorStreaming.MAX_RATE;
+    private int mMinPacketFrames = 0;
+    private int mMaxPacketFrames = 1;
+
+    /** Fraction of the expected frames below which a window counts as congested */
+    private float mDegradeRatio = 0.8f;
+    /** Fraction of the expected frames a window needs to count as healthy */
+    private float mRecoverRatio = 0.95f;
+    /** Consecutive healthy windows needed before stepping back up */
+    private int mRecoverWindows = 3;
+
+    private boolean mRunning = false;
+    private boolean mSettling = false;
+    private int mHealthyWindows = 0;
+
+    // Bounds in effect, and the configurations stepped down from, newest last
+    private int mFloorDivisor;
+    private int mFloorPacketFrames;
+    private int mCeilingPacketFrames;
+    private final ArrayList<int[]> mStepsTaken = new ArrayList<int[]>();
+    private int mAppliedDivisor;
+    private int mAppliedPacketFrames;
+
+    // Protected by this, written from the Bluetooth thread
+    private long mWindowFrames = 0;
+    private long mWindowPackets = 0;
+    private long mWindowBytes = 0;
+    private long mMaxGap = 0;
+    private long mLastPacketTime = 0;
+
+    // Figures of the last completed window
+    private volatile float mBytesPerSecond = 0;
+    private volatile float mFramesPerSecond = 0;
+    private volatile long mLastMaxGap = 0;
+    private volatile int mSteps = 0;
+
+    private final SensorFrameStream.SensorBatchListener mBatchListener = new SensorFrameStream.SensorBatchListener() {
+        @Override
+        public void onSensorBatch(SensorFrameBatch batch) {
+            long now = batch.getTimeStamp();
+            synchronized (StreamRateGovernor.this) {
+                mWindowFrames += batch.getFrameCount();
+                mWindowPackets++;
+                mWindowBytes += batch.getData().length + PACKET_OVERHEAD;
+                if (mLastPacketTime != 0) {
+                    mMaxGap = Math.max(mMaxGap, now - mLastPacketTime);
+                }
+                mLastPacketTime = now;
+            }
+        }
+    };
+
+    private final Runnable mEvaluateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+            evaluate();
+            mHandler.postDelayed(this, mWindow);
+        }
+    };
+
+    public StreamRateGovernor(SensorStreaming streaming) {
+        mStreaming = streaming;
+    }
+
+    public SensorStreaming getStreaming() {
+        return mStreaming;
+    }
+
+    /**
+     * Sets the range the governor may move the streaming rate in. Without it, the governor only slows
+     * down from the rate it started with.
+     *
+     * @param minRate the lowest rate to fall back to, in Hz
+     * @param maxRate the highest rate to step up to, in Hz
+     */
+    public void setRateBounds(int minRate, int maxRate) {
+        if (minRate <= 0 || maxRate < minRate) {
+            throw new IllegalArgumentException("rate bounds must be positive and ordered");
+        }
+        mMinDivisor = SensorStreaming.MAX_RATE / Math.min(maxRate, SensorStreaming.MAX_RATE);
+        mMaxDivisor = SensorStreaming.MAX_RATE / Math.min(minRate, SensorStreaming.MAX_RATE);
+    }
+
+    /**
+     * Sets the range the governor may move the frames per packet in. Without it, the governor keeps the
+     * frames per packet it started with.
+     *
+     * @param min the fewest frames per packet
+     * @param max the most frames per packet
+     */
+    public void setPacketFrameBounds(int min, int max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("packet frame bounds must be positive and ordered");
+        }
+        mMinPacketFrames = min;
+        mMaxPacketFrames = max;
+    }
+
+    /**
+     * Sets the length of an evaluation window. Takes effect after the current window.
+     *
+     * @param window the window in milliseconds
+     */
+    public void setWindow(long window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        mWindow = window;
+    }
+
+    public long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Sets how the delivered share of the expected frames is judged.
+     *
+     * @param degradeRatio below this share a window is congested and the rate is stepped down
+     * @param recoverRatio at or above this share a window is healthy
+     * @param recoverWindows the number of consecutive healthy windows before the rate is stepped up
+     */
+    public void setThresholds(float degradeRatio, float recoverRatio, int recoverWindows) {
+        if (degradeRatio > recoverRatio || recoverWindows <= 0) {
+            throw new IllegalArgumentException("invalid thresholds");
+        }
+        mDegradeRatio = degradeRatio;
+        mRecoverRatio = recoverRatio;
+        mRecoverWindows = recoverWindows;
+    }
+
+    /**
+     * Starts governing, beginning with the streaming's current configuration clamped to the bounds.
+     * Must be called from a thread with a Looper.
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        resetWindow();
+        mStreaming.getFrameStream().addSensorBatchListener(mBatchListener);
+        restart();
+        apply(clamp(mStreaming.getDivisor(), mFloorDivisor, mMaxDivisor),
+                clamp(mStreaming.getPacketFrames(), mFloorPacketFrames, mCeilingPacketFrames));
+        mHandler.postDelayed(mEvaluateRunnable, mWindow);
+    }
+
+    /**
+     * Takes the streaming's current configuration as the starting point and forgets the steps taken.
+     */
+    private void restart() {
+        int divisor = mStreaming.getDivisor();
+        int packetFrames = mStreaming.getPacketFrames();
+        mFloorDivisor = (mMinDivisor > 0) ? mMinDivisor : Math.min(divisor, mMaxDivisor);
+        mFloorPacketFrames = (mMinPacketFrames > 0) ? mMinPacketFrames : packetFrames;
+        mCeilingPacketFrames = Math.max(mMaxPacketFrames, mFloorPacketFrames);
+        mStepsTaken.clear();
+        mHealthyWindows = 0;
+    }
+
+    /**
+     * Stops governing. The streaming keeps the configuration it was last given.
+     */
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mHandler.removeCallbacks(mEvaluateRunnable);
+        mStreaming.getFrameStream().removeSensorBatchListener(mBatchListener);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public void addStreamRateListener(StreamRateListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeStreamRateListener(StreamRateListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private synchronized void resetWindow() {
+        mWindowFrames = 0;
+        mWindowPackets = 0;
+        mWindowBytes = 0;
+        mMaxGap = 0;
+        mLastPacketTime = 0;
+    }
+
+    private void evaluate() {
+        long frames;
+        long packets;
+        long bytes;
+        long maxGap;
+        synchronized (this) {
+            frames = mWindowFrames;
+            packets = mWindowPackets;
+            bytes = mWindowBytes;
+            maxGap = mMaxGap;
+        }
+        resetWindow();
+
+        float seconds = mWindow / 1000.0f;
+        mFramesPerSecond = frames / seconds;
+        mBytesPerSecond = bytes / seconds;
+        mLastMaxGap = maxGap;
+
+        if (!mStreaming.isStreaming()) {
+            return;
+        }
+        if (mSettling) {
+            // Packets requested with the old configuration are dropped while the change takes effect
+            mSettling = false;
+            return;
+        }
+
+        int divisor = mStreaming.getDivisor();
+        int packetFrames = mStreaming.getPacketFrames();
+        if (divisor != mAppliedDivisor || packetFrames != mAppliedPacketFrames) {
+            // Changed by someone else, the steps taken no longer lead back to it
+            restart();
+            mAppliedDivisor = divisor;
+            mAppliedPacketFrames = packetFrames;
+            return;
+        }
+        float expectedFrames = mStreaming.getRate() * seconds;
+        float packetInterval = 1000.0f * divisor * packetFrames / SensorStreaming.MAX_RATE;
+        float delivered = frames / expectedFrames;
+
+        // A stall longer than several packet intervals means the link is backing up even if it caught up
+        boolean stalled = maxGap > Math.max(4 * packetInterval, 250);
+
+        if (delivered < mDegradeRatio || stalled) {
+            mHealthyWindows = 0;
+            // Step down until the configuration fits the bytes the link carried, at least once
+            float bytesPerFrame = (frames > 0) ? (bytes - packets * PACKET_OVERHEAD) / (float) frames : 0;
+            int[] step = stepDown(divisor, packetFrames);
+            while (step != null) {
+                mStepsTaken.add(new int[]{divisor, packetFrames});
+                divisor = step[0];
+                packetFrames = step[1];
+                if (frames == 0
+                        || expectedBytesPerSecond(divisor, packetFrames, bytesPerFrame) <= mBytesPerSecond) {
+                    break;
+                }
+                step = stepDown(divisor, packetFrames);
+            }
+            apply(divisor, packetFrames);
+        } else if (delivered >= mRecoverRatio) {
+            if (++mHealthyWindows < mRecoverWindows) {
+                return;
+            }
+            mHealthyWindows = 0;
+            if (!mStepsTaken.isEmpty()) {
+                int[] previous = mStepsTaken.remove(mStepsTaken.size() - 1);
+                apply(previous[0], previous[1]);
+            }
+        } else {
+            mHealthyWindows = 0;
+        }
+    }
+
+    /**
+     * Returns the next configuration down from the given one, or null if it is at the bounds.
+     */
+    private int[] stepDown(int divisor, int packetFrames) {
+        if (divisor < mMaxDivisor) {
+            return new int[]{Math.min(divisor * 2, mMaxDivisor), packetFrames};
+        } else if (packetFrames < mCeilingPacketFrames) {
+            return new int[]{divisor, Math.min(packetFrames * 2, mCeilingPacketFrames)};
+        }
+        return null;
+    }
+
+    private static float expectedBytesPerSecond(int divisor, int packetFrames, float bytesPerFrame) {
+        float rate = (float) SensorStreaming.MAX_RATE / divisor;
+        return rate * bytesPerFrame + rate / packetFrames * PACKET_OVERHEAD;
+    }
+
+    private void apply(int divisor, int packetFrames) {
+        mAppliedDivisor = divisor;
+        mAppliedPacketFrames = packetFrames;
+        if (divisor == mStreaming.getDivisor() && packetFrames == mStreaming.getPacketFrames()) {
+            return;
+        }
+        mStreaming.setDivisorAndPacketFrames(divisor, packetFrames);
+        mSettling = true;
+        mSteps++;
+
+        float rate = mStreaming.getRate();
+        for (StreamRateListener listener : mListeners) {
+            listener.onStreamRateChanged(this, rate, packetFrames);
+        }
+    }
+
+    /**
+     * @return the bytes per second received during the last window, framing included
+     */
+    public float getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * @return the frames per second received during the last window
+     */
+    public float getFramesPerSecond() {
+        return mFramesPerSecond;
+    }
+
+    /**
+     * @return the longest gap between two packets during the last window, in milliseconds
+     */
+    public long getLastMaxGap() {
+        return mLastMaxGap;
+    }
+
+    /**
+     * @return the number of configuration changes made since the governor was created
+     */
+    public int getStepCount() {
+        return mSteps;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("rate=%.1fHz frames/packet=%d in=%.0fB/s %.1ffps gap=%dms",
+                mStreaming.getRate(), mStreaming.getPacketFrames(), mBytesPerSecond, mFramesPerSecond, mLastMaxGap);
+    }
+}
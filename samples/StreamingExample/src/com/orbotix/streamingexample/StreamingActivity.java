@@ -4,18 +4,17 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Process;
 import android.util.Log;
 import android.view.View;
 import orbotix.robot.base.Robot;
-import orbotix.robot.sensor.AccelerometerData;
-import orbotix.robot.sensor.AttitudeSensor;
-import orbotix.robot.sensor.DeviceSensorsData;
 import orbotix.sphero.ConnectionListener;
 import orbotix.sphero.SensorFlag;
-import orbotix.sphero.SensorListener;
 import orbotix.sphero.Sphero;
 import orbotix.view.connection.SpheroConnectionView;
 
+import java.util.concurrent.ExecutorService;
+
 public class StreamingActivity extends Activity {
     /** Sphero Connection Activity */
     private SpheroConnectionView mSpheroConnectionView;
@@ -29,27 +28,77 @@ public class StreamingActivity extends Activity {
     private CoordinateView mAccelerometerFilteredView;
     private ConnectionListener mConnectionListener;
 
-    private final SensorListener mSensorListener = new SensorListener() {
+    /** Watches the Bluetooth link while we stream */
+    private LinkHealthMonitor mLinkHealthMonitor;
+
+    private final LinkHealthMonitor.LinkHealthListener mLinkHealthListener = new LinkHealthMonitor.LinkHealthListener() {
         @Override
-        public void sensorUpdated(DeviceSensorsData datum) {
-            //Show attitude data
-            AttitudeSensor attitude = datum.getAttitudeData();
-            if (attitude != null) {
-                mImuView.setPitch(String.format("%+3d", attitude.pitch));
-                mImuView.setRoll(String.format("%+3d", attitude.roll));
-                mImuView.setYaw(String.format("%+3d", attitude.yaw));
-            }
+        public void onLinkHealthUpdated(LinkHealthMonitor monitor) {
+            Log.d("StreamingActivity", "Link health: " + monitor);
+        }
+    };
 
-            //Show accelerometer data
-            AccelerometerData accel = datum.getAccelerometerData();
-            if (attitude != null) {
-                mAccelerometerFilteredView.setX(String.format("%+.4f", accel.getFilteredAcceleration().x));
-                mAccelerometerFilteredView.setY(String.format("%+.4f", accel.getFilteredAcceleration().y));
-                mAccelerometerFilteredView.setZ(String.format("%+.4f", accel.getFilteredAcceleration().z));
-            }
+    /** This robot's streaming configuration, decoded against its own mask */
+    private SensorStreaming mStreaming;
+
+    /** Shares the robot's stream between listeners with their own rates and sensors */
+    private SensorMultiplexer mMultiplexer;
+
+    /** Formats the readings off the main thread, which the SDK delivers frames on */
+    private ExecutorService mFormatExecutor;
+    private ListenerMailbox<Readings> mReadingsMailbox;
+
+    /** The values shown, copied out of a frame since frames don't outlive their callback */
+    private static class Readings {
+        boolean hasAttitude;
+        int pitch, roll, yaw;
+        boolean hasAccelerometer;
+        float x, y, z;
+    }
+
+    private final SensorFrameStream.SensorFrameListener mFrameListener = new SensorFrameStream.SensorFrameListener() {
+        @Override
+        public void onSensorFrame(SensorFrame frame) {
+            Readings readings = new Readings();
+            readings.hasAttitude = frame.has(SensorFlag.ATTITUDE);
+            readings.pitch = frame.getInt(SensorFlag.ATTITUDE, 0);
+            readings.roll = frame.getInt(SensorFlag.ATTITUDE, 1);
+            readings.yaw = frame.getInt(SensorFlag.ATTITUDE, 2);
+            readings.hasAccelerometer = frame.has(SensorFlag.ACCELEROMETER_NORMALIZED);
+            readings.x = frame.getFloat(SensorFlag.ACCELEROMETER_NORMALIZED, 0);
+            readings.y = frame.getFloat(SensorFlag.ACCELEROMETER_NORMALIZED, 1);
+            readings.z = frame.getFloat(SensorFlag.ACCELEROMETER_NORMALIZED, 2);
+            mReadingsMailbox.post(readings);
         }
     };
 
+    /** Runs on the format thread, only setting the text is left for the main thread */
+    private void showReadings(final Readings readings) {
+        final String pitch = String.format("%+3d", readings.pitch);
+        final String roll = String.format("%+3d", readings.roll);
+        final String yaw = String.format("%+3d", readings.yaw);
+        final String x = String.format("%+.4f", readings.x);
+        final String y = String.format("%+.4f", readings.y);
+        final String z = String.format("%+.4f", readings.z);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                //Show attitude data
+                if (readings.hasAttitude) {
+                    mImuView.setPitch(pitch);
+                    mImuView.setRoll(roll);
+                    mImuView.setYaw(yaw);
+                }
+
+                //Show accelerometer data
+                if (readings.hasAccelerometer) {
+                    mAccelerometerFilteredView.setX(x);
+                    mAccelerometerFilteredView.setY(y);
+                    mAccelerometerFilteredView.setZ(z);
+                }
+            }
+        });
+    }
 
     /** Called when the activity is first created. */
     @Override
@@ -71,15 +120,30 @@ public class StreamingActivity extends Activity {
             public void onConnected(Robot sphero) {
                 Log.d("StreamingActivity", "Connected...");
                 // Hide the connection view. Comment this code if you want to connect to multiple robots in other apps.
-                // Currently streaming doesn't support multiple robots.
+                // Each robot streams through its own SensorStreaming, so several robots can stream at once.
                 mSpheroConnectionView.setVisibility(View.INVISIBLE);
 
                 mRobot = (Sphero) sphero;
                 mRobot.setBackLEDBrightness(1.0f);
                 mRobot.setColor(50, 130, 60);
                 mRobot.enableStabilization(false);  // disable
-                mRobot.getSensorControl().setRate(10  /*Hz*/);
-                mRobot.getSensorControl().addSensorListener(mSensorListener, SensorFlag.ACCELEROMETER_NORMALIZED, SensorFlag.ATTITUDE);
+                mFormatExecutor = ListenerExecutors.newDedicatedThread("StreamingActivity-format",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                // Only the newest readings are worth showing
+                mReadingsMailbox = new ListenerMailbox<Readings>(mFormatExecutor, 1, ListenerMailbox.Policy.CONFLATE) {
+                    @Override
+                    protected void deliver(Readings readings) {
+                        showReadings(readings);
+                    }
+                };
+                mStreaming = SensorStreaming.forRobot(mRobot);
+                mMultiplexer = new SensorMultiplexer(mStreaming);
+                mMultiplexer.addSensorListener(mFrameListener, 10 /*Hz*/,
+                        SensorFlag.ACCELEROMETER_NORMALIZED, SensorFlag.ATTITUDE);
+
+                mLinkHealthMonitor = new LinkHealthMonitor(mRobot);
+                mLinkHealthMonitor.addLinkHealthListener(mLinkHealthListener);
+                mLinkHealthMonitor.start();
             }
 
             @Override
@@ -89,6 +153,8 @@ public class StreamingActivity extends Activity {
 
             @Override
             public void onDisconnected(Robot sphero) {
+                stopStreaming();
+                stopLinkHealthMonitor();
                 mSpheroConnectionView.startDiscovery();
             }
         };
@@ -110,11 +176,32 @@ public class StreamingActivity extends Activity {
         BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
         if (mRobot != null) {
             // make sure to remove the streaming listener!
-            mRobot.getSensorControl().removeSensorListener(mSensorListener);
+            stopStreaming();
+            stopLinkHealthMonitor();
             mRobot.disconnect(); // Disconnect Robot properly
         }
     }
 
+    private void stopStreaming() {
+        if (mStreaming != null) {
+            // Removing the last listener stops the robot's stream
+            mMultiplexer.removeSensorListener(mFrameListener);
+            SensorStreaming.release(mStreaming.getRobot());
+            mMultiplexer = null;
+            mStreaming = null;
+            mFormatExecutor.shutdown();
+            mFormatExecutor = null;
+        }
+    }
+
+    private void stopLinkHealthMonitor() {
+        if (mLinkHealthMonitor != null) {
+            mLinkHealthMonitor.stop();
+            mLinkHealthMonitor.removeLinkHealthListener(mLinkHealthListener);
+            mLinkHealthMonitor = null;
+        }
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
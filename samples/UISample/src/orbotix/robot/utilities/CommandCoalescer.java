@@ -0,0 +1,232 @@
+package orbotix.robot.utilities;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import orbotix.robot.base.Robot;
+import orbotix.robot.internal.DeviceCommand;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latest-wins send stage for a single robot. Idempotent control commands (roll, RGB LED, back LED,
+ * rotation rate and set heading) that are posted faster than the flush interval replace each other, so
+ * only the newest value for each command id is handed to the robot. Every other command is sent right
+ * away, after anything still pending, so ordering between the two kinds is kept.
+ *
+ * All methods are expected to be called from the thread that created the coalescer (normally the UI
+ * thread), which is also where the flushes run.
+ */
+public class CommandCoalescer {
+
+    /** Default minimum time between two sends of the same command id, in milliseconds */
+    public static final long DEFAULT_FLUSH_INTERVAL = 33;
+
+    private static final HashMap<Robot, CommandCoalescer> sCoalescers = new HashMap<Robot, CommandCoalescer>();
+
+    private final Robot mRobot;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<Byte, Runnable> mPending = new LinkedHashMap<Byte, Runnable>();
+
+    private long mFlushInterval = DEFAULT_FLUSH_INTERVAL;
+    private long mLastFlushTime = 0;
+    private boolean mFlushScheduled = false;
+    private boolean mReleased = false;
+
+    // Counters
+    private long mPostedCount = 0;
+    private long mSentCount = 0;
+    private long mSupersededCount = 0;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flush();
+        }
+    };
+
+    /**
+     * Returns the coalescer for the given robot, creating it on first use.
+     *
+     * @param robot the robot the commands are sent to
+     * @return the robot's coalescer
+     */
+    public static synchronized CommandCoalescer forRobot(Robot robot) {
+        CommandCoalescer coalescer = sCoalescers.get(robot);
+        if (coalescer == null) {
+            coalescer = new CommandCoalescer(robot);
+            sCoalescers.put(robot, coalescer);
+        }
+        return coalescer;
+    }
+
+    /**
+     * Drops any pending commands for the given robot and forgets its coalescer. Call this when the
+     * robot disconnects.
+     *
+     * @param robot the robot to release
+     */
+    public static synchronized void release(Robot robot) {
+        CommandCoalescer coalescer = sCoalescers.remove(robot);
+        if (coalescer != null) {
+            coalescer.mReleased = true;
+            coalescer.cancelAll();
+        }
+    }
+
+    private CommandCoalescer(Robot robot) {
+        mRobot = robot;
+    }
+
+    /**
+     * @return True, once {@link #release(Robot)} was called for this coalescer's robot. Holders should drop
+     *         it then, it ignores anything posted afterwards.
+     */
+    public boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * Indicates whether only the newest pending instance of the command id needs to reach the robot.
+     *
+     * @param commandId a Sphero command id
+     * @return True, if older pending instances can be dropped
+     */
+    public static boolean isIdempotent(byte commandId) {
+        return commandId == DeviceCommand.SpheroCommandRoll
+                || commandId == DeviceCommand.SpheroCommandRGBLEDOutput
+                || commandId == DeviceCommand.SpheroCommandBackLEDOutput
+                || commandId == DeviceCommand.SpheroCommandRotationRate
+                || commandId == DeviceCommand.SpheroCommandSetHeading;
+    }
+
+    /**
+     * Sets the minimum time between two flushes of the pending commands.
+     *
+     * @param interval the interval in milliseconds, 0 sends on the next pass of the message loop
+     */
+    public void setFlushInterval(long interval) {
+        mFlushInterval = (interval < 0) ? 0 : interval;
+    }
+
+    public long getFlushInterval() {
+        return mFlushInterval;
+    }
+
+    /**
+     * Queues a command for the robot. Idempotent commands replace a pending command with the same id,
+     * anything else is sent immediately.
+     *
+     * @param command the command to send
+     */
+    public void post(final DeviceCommand command) {
+        if (mReleased) {
+            return;
+        }
+        Runnable sender = new Runnable() {
+            @Override
+            public void run() {
+                mRobot.doCommand(command);
+            }
+        };
+
+        if (command.getDeviceId() == DeviceCommand.SpheroDeviceId && isIdempotent(command.getCommandId())) {
+            post(command.getCommandId(), sender);
+        } else {
+            mPostedCount++;
+            flush();
+            sender.run();
+            mSentCount++;
+        }
+    }
+
+    /**
+     * Queues an action that sends a command with the given id. This is for callers, such as
+     * {@link orbotix.robot.base.DriveControl}, that build and send the command themselves.
+     *
+     * @param commandId the id of the command the action sends
+     * @param sender the action that sends the command
+     */
+    public void post(byte commandId, Runnable sender) {
+        if (mReleased) {
+            return;
+        }
+        mPostedCount++;
+        if (mPending.put(commandId, sender) != null) {
+            mSupersededCount++;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Drops the pending command with the given id, if any. Use this before sending a command that must
+     * not be overtaken by a stale one, such as a stop.
+     *
+     * @param commandId the command id to drop
+     */
+    public void cancel(byte commandId) {
+        mPending.remove(commandId);
+    }
+
+    /**
+     * Drops all pending commands.
+     */
+    public void cancelAll() {
+        mPending.clear();
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+    }
+
+    /**
+     * Sends all pending commands now, in the order their ids were first posted.
+     */
+    public void flush() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        mLastFlushTime = SystemClock.uptimeMillis();
+
+        Iterator<Map.Entry<Byte, Runnable>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Runnable sender = it.next().getValue();
+            it.remove();
+            sender.run();
+            mSentCount++;
+        }
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+
+        long delay = mLastFlushTime + mFlushInterval - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mFlushRunnable, (delay < 0) ? 0 : delay);
+    }
+
+    /**
+     * @return the number of commands handed to this coalescer
+     */
+    public long getPostedCount() {
+        return mPostedCount;
+    }
+
+    /**
+     * @return the number of commands actually sent to the robot
+     */
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return the number of commands that were replaced by a newer one before they were sent
+     */
+    public long getSupersededCount() {
+        return mSupersededCount;
+    }
+}
@@ -11,6 +11,8 @@ import android.view.View;
 import orbotix.robot.base.DriveControl;
 import orbotix.robot.base.Robot;
 import orbotix.robot.base.RotationRateCommand;
+import orbotix.robot.internal.DeviceCommand;
+import orbotix.robot.utilities.CommandCoalescer;
 import orbotix.uisample.R;
 import orbotix.view.calibration.Controller;
 
@@ -38,8 +40,18 @@ public class JoystickView extends View implements Controller {
 	private int		draggingPuckPointerId;
 
     private Robot robot = null;
+    private CommandCoalescer coalescer = null;
     private DriveControl drive_control = DriveControl.INSTANCE;
 
+    //Latest drive coordinates, sent by the coalescer so stale moves are dropped
+    private final Point pending_drive_coord = new Point();
+    private final Runnable drive_runnable = new Runnable() {
+        @Override
+        public void run() {
+            drive_control.driveJoyStick(pending_drive_coord.x, pending_drive_coord.y);
+        }
+    };
+
     private float speed = 0.8f;
     private float rotation = 0.7f;
 
@@ -85,8 +97,9 @@ public class JoystickView extends View implements Controller {
     public void setRotation(float rotation){
         this.rotation = rotation;
 
-        if(this.robot != null){
-            RotationRateCommand.sendCommand(this.robot, rotation);
+        CommandCoalescer coalescer = this.getCoalescer();
+        if(coalescer != null){
+            coalescer.post(new RotationRateCommand(rotation));
         }
     }
     
@@ -109,6 +122,18 @@ public class JoystickView extends View implements Controller {
 
     public void setRobot(Robot robot){
         this.robot = robot;
+        this.coalescer = (robot != null) ? CommandCoalescer.forRobot(robot) : null;
+    }
+
+    /**
+     * Returns the robot's coalescer, or null if there is no robot or its coalescer was released on
+     * disconnect
+     */
+    private CommandCoalescer getCoalescer(){
+        if(this.coalescer != null && this.coalescer.isReleased()){
+            this.coalescer = null;
+        }
+        return this.coalescer;
     }
 
     public void setOnStartRunnable(Runnable runnable){
@@ -291,7 +316,11 @@ public class JoystickView extends View implements Controller {
 
                 //Adjust drive coordinates for driving
                 Point drive_coord = this.getDrivePuckPosition(local_point);
-                this.drive_control.driveJoyStick(drive_coord.x, drive_coord.y);
+                this.pending_drive_coord.set(drive_coord.x, drive_coord.y);
+                CommandCoalescer coalescer = this.getCoalescer();
+                if(coalescer != null){
+                    coalescer.post(DeviceCommand.SpheroCommandRoll, this.drive_runnable);
+                }
 
                 //Set the puck position to within the bounds of the wheel
                 final Point i = getValidPuckPosition(local_point);
@@ -315,6 +344,11 @@ public class JoystickView extends View implements Controller {
                 draggingPuck = false;
                 handled = true;
 
+                //Don't let a pending move overtake the stop
+                CommandCoalescer coalescer = this.getCoalescer();
+                if(coalescer != null){
+                    coalescer.cancel(DeviceCommand.SpheroCommandRoll);
+                }
                 this.drive_control.stopDriving();
 
                 if(mOnEndRunnable != null){
@@ -12,6 +12,8 @@ import android.view.View;
 import android.widget.Toast;
 import orbotix.robot.app.ColorPickerActivity;
 import orbotix.robot.base.Robot;
+import orbotix.robot.internal.DeviceCommand;
+import orbotix.robot.utilities.CommandCoalescer;
 import orbotix.robot.widgets.CalibrationImageButtonView;
 import orbotix.robot.widgets.NoSpheroConnectedView;
 import orbotix.robot.widgets.NoSpheroConnectedView.OnConnectButtonClickListener;
@@ -36,6 +38,9 @@ public class UiSampleActivity extends ControllerActivity {
     /** The Robot to control */
     private Sphero mRobot;
 
+    /** Coalesces the robot's color changes, null while no robot is connected */
+    private CommandCoalescer mCoalescer;
+
     /** One-Touch Calibration Button */
     private CalibrationImageButtonView mCalibrationImageButtonView;
 
@@ -64,11 +69,45 @@ public class UiSampleActivity extends ControllerActivity {
             int green = intent.getIntExtra(ColorPickerActivity.EXTRA_COLOR_GREEN, 0);
             int blue = intent.getIntExtra(ColorPickerActivity.EXTRA_COLOR_BLUE, 0);
 
-            // change the color on the ball
-            mRobot.setColor(red, green, blue);
+            // change the color on the ball, dropping any color the ball hasn't been sent yet
+            CommandCoalescer coalescer = getCoalescer();
+            if (coalescer != null) {
+                coalescer.post(DeviceCommand.SpheroCommandRGBLEDOutput, new ColorSender(red, green, blue));
+            }
         }
     };
 
+    /** Sets the color through the Sphero, so it and the picker's colors know the color sent */
+    private class ColorSender implements Runnable {
+        private final int mSenderRed, mSenderGreen, mSenderBlue;
+
+        ColorSender(int red, int green, int blue) {
+            mSenderRed = red;
+            mSenderGreen = green;
+            mSenderBlue = blue;
+        }
+
+        @Override
+        public void run() {
+            mRed = mSenderRed;
+            mGreen = mSenderGreen;
+            mBlue = mSenderBlue;
+            mRobot.setColor(mRed, mGreen, mBlue);
+        }
+    }
+
+    /**
+     * Returns the connected robot's coalescer, or null if there is no robot or its coalescer was released
+     * on disconnect
+     */
+    private CommandCoalescer getCoalescer() {
+        if (mCoalescer != null && (mCoalescer.isReleased() || mRobot == null
+                || !Boolean.TRUE.equals(mRobot.isConnected()))) {
+            mCoalescer = null;
+        }
+        return mCoalescer;
+    }
+
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -84,6 +123,7 @@ public class UiSampleActivity extends ControllerActivity {
             public void onConnected(Robot robot) {
                 // Set Robot
                 mRobot = (Sphero) robot; // safe to cast for now
+                mCoalescer = CommandCoalescer.forRobot(mRobot);
                 //Set connected Robot to the Controllers
                 setRobot(mRobot);
 
@@ -102,6 +142,8 @@ public class UiSampleActivity extends ControllerActivity {
 
             @Override
             public void onDisconnected(Robot sphero) {
+                CommandCoalescer.release(sphero);
+                mCoalescer = null;
                 mSpheroConnectionView.startDiscovery();
             }
         });
@@ -175,6 +217,8 @@ public class UiSampleActivity extends ControllerActivity {
 
         // Disconnect Robot properly
         if (mRobot != null) {
+            CommandCoalescer.release(mRobot);
+            mCoalescer = null;
             mRobot.disconnect();
         }
         try {
@@ -195,7 +239,11 @@ public class UiSampleActivity extends ControllerActivity {
                 mBlue = data.getIntExtra(ColorPickerActivity.EXTRA_COLOR_BLUE, 0xff);
 
                 //Set the color
-                mRobot.setColor(mRed, mGreen, mBlue);
+                CommandCoalescer coalescer = getCoalescer();
+                if (coalescer != null) {
+                    coalescer.cancel(DeviceCommand.SpheroCommandRGBLEDOutput);
+                    mRobot.setColor(mRed, mGreen, mBlue);
+                }
             } else if (requestCode == BLUETOOTH_ENABLE_REQUEST) {
                 // User enabled bluetooth, so refresh Sphero list
                 mSpheroConnectionView.setVisibility(View.VISIBLE);